@@ -0,0 +1,683 @@
+package bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import core.AnalysisProfile;
+import core.F0Estimator.AudioDescriptor;
+import core.FrameAnalyser;
+import core.FrameAnalysis;
+import core.FrameReader;
+import core.HammingWindow;
+import core.KlapuriWeightCalculator;
+import core.PolyphonicEstimator;
+import core.RealFFT;
+import core.SlidingDFT;
+import core.TableCache;
+import core.Transformer;
+import core.WavFile;
+import core.Whitener;
+
+/**
+ * Benchmarks for each stage of the F0 estimation pipeline, and for the
+ * pipeline as a whole.
+ *
+ * Each benchmark is warmed up and then timed over several fixed-duration
+ * iterations.  The time per operation is reported along with the bytes
+ * allocated per operation and the allocation rate (the same figures as JMH's
+ * GC profiler), measured from the benchmark thread's allocation counter.
+ *
+ * Inputs are taken from the bundled WAV files.  The stage benchmarks cycle
+ * through frames drawn from all of the files.  The window and FFT benchmarks
+ * are run at each of the requested frame sizes, in double and single
+ * precision; the other stages (including the sliding DFT, which is compared
+ * with the full transform for a range of steps) are run for each of the
+ * requested analysis profiles.
+ */
+public class PipelineBenchmark
+{
+  private static final long WARMUP_NANOS = 2000000000L;
+  private static final long ITERATION_NANOS = 1000000000L;
+  private static final int ITERATIONS = 5;
+
+  /**
+   * The number of frames taken from each file for the stage benchmarks.
+   */
+  private static final int FRAMES_PER_FILE = 32;
+
+  /**
+   * The length (in seconds) of the region analysed by the region benchmarks.
+   */
+  private static final int REGION_SECONDS = 2;
+
+  /**
+   * Sink for benchmark results, to stop the JIT eliminating the work.
+   */
+  public static volatile double sBlackhole;
+
+  /**
+   * A single benchmark.
+   */
+  private static abstract class Benchmark
+  {
+    public final String mName;
+
+    public Benchmark(String xiName)
+    {
+      mName = xiName;
+    }
+
+    /**
+     * Perform one operation.
+     */
+    public abstract void run() throws Exception;
+  }
+
+  private final File[] mFiles;
+  private final int[] mFrameSizes;
+  private final AnalysisProfile[] mProfiles;
+  private final String mFilter;
+  private final List<Benchmark> mBenchmarks = new ArrayList<Benchmark>();
+
+  /**
+   * Run the benchmarks.
+   *
+   * @param xiArgs - [-data DIR] [-sizes N,N,...] [-profiles NAME,NAME,...]
+   * [-filter TEXT].  The data directory defaults to "data", the frame sizes
+   * to 2048,4096,8192, the profiles to standard and the filter (which selects
+   * benchmarks whose name contains the text) to all.
+   * @throws Exception if anything goes wrong.
+   */
+  public static void main(String[] xiArgs) throws Exception
+  {
+    File lDataDir = new File("data");
+    String lSizes = "2048,4096,8192";
+    String lProfileNames = AnalysisProfile.STANDARD.mName;
+    String lFilter = "";
+    for (int lii = 0; lii < xiArgs.length; lii++)
+    {
+      if (xiArgs[lii].equals("-data"))
+      {
+        lDataDir = new File(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-sizes"))
+      {
+        lSizes = xiArgs[++lii];
+      }
+      else if (xiArgs[lii].equals("-profiles"))
+      {
+        lProfileNames = xiArgs[++lii];
+      }
+      else if (xiArgs[lii].equals("-filter"))
+      {
+        lFilter = xiArgs[++lii];
+      }
+    }
+
+    final String[] lSizeStrings = lSizes.split(",");
+    final int[] lFrameSizes = new int[lSizeStrings.length];
+    for (int lii = 0; lii < lSizeStrings.length; lii++)
+    {
+      lFrameSizes[lii] = Integer.parseInt(lSizeStrings[lii].trim());
+    }
+
+    final String[] lProfileStrings = lProfileNames.split(",");
+    final AnalysisProfile[] lProfiles = new AnalysisProfile[lProfileStrings.length];
+    for (int lii = 0; lii < lProfileStrings.length; lii++)
+    {
+      lProfiles[lii] = AnalysisProfile.forName(lProfileStrings[lii].trim());
+    }
+
+    final File[] lFiles = lDataDir.listFiles();
+    if (lFiles == null)
+    {
+      System.err.println("No such data directory: " + lDataDir);
+      System.exit(1);
+    }
+    Arrays.sort(lFiles);
+    final List<File> lWavFiles = new ArrayList<File>();
+    for (final File lFile : lFiles)
+    {
+      if (lFile.getName().endsWith(".wav"))
+      {
+        lWavFiles.add(lFile);
+      }
+    }
+
+    new PipelineBenchmark(lWavFiles.toArray(new File[lWavFiles.size()]),
+                          lFrameSizes,
+                          lProfiles,
+                          lFilter).run();
+  }
+
+  private PipelineBenchmark(File[] xiFiles,
+                            int[] xiFrameSizes,
+                            AnalysisProfile[] xiProfiles,
+                            String xiFilter)
+  {
+    mFiles = xiFiles;
+    mFrameSizes = xiFrameSizes;
+    mProfiles = xiProfiles;
+    mFilter = xiFilter;
+  }
+
+  private void run() throws Exception
+  {
+    addReadBenchmarks();
+    for (final int lFrameSize : mFrameSizes)
+    {
+      addWindowBenchmarks(lFrameSize);
+    }
+    for (final AnalysisProfile lProfile : mProfiles)
+    {
+      addStageBenchmarks(lProfile);
+      addSlidingBenchmarks(lProfile);
+      addSetupBenchmarks(lProfile);
+      addPipelineBenchmarks(lProfile);
+    }
+
+    System.out.println(String.format(Locale.ROOT,
+                                     "%-48s %14s %14s %12s",
+                                     "Benchmark",
+                                     "ns/op",
+                                     "bytes/op",
+                                     "MB/s alloc"));
+    for (final Benchmark lBenchmark : mBenchmarks)
+    {
+      if (lBenchmark.mName.contains(mFilter))
+      {
+        measure(lBenchmark);
+      }
+    }
+  }
+
+  /**
+   * WavFile.readFrames - reading a whole file, in each reader mode.
+   */
+  private void addReadBenchmarks()
+  {
+    for (final File lFile : mFiles)
+    {
+      for (final boolean lMapped : new boolean[] {false, true})
+      {
+        mBenchmarks.add(new Benchmark("read." + (lMapped ? "mapped" : "stream") +
+                                      ":" + lFile.getName())
+        {
+          private final double[] mBuffer = new double[4096];
+
+          @Override
+          public void run() throws Exception
+          {
+            final WavFile lWavFile = WavFile.openWavFile(lFile, lMapped);
+            final int lFrames = mBuffer.length / lWavFile.getNumChannels();
+            while (lWavFile.readFrames(mBuffer, lFrames) > 0)
+            {
+              sBlackhole = mBuffer[0];
+            }
+            lWavFile.close();
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * HammingWindow.apply and the FFT at a given frame size.
+   */
+  private void addWindowBenchmarks(final int xiFrameSize) throws Exception
+  {
+    final double[][] lFrames = loadFrames(xiFrameSize);
+    final double[] lWork = new double[xiFrameSize];
+
+    final HammingWindow lWindow = new HammingWindow(xiFrameSize);
+    mBenchmarks.add(new Benchmark("window:" + xiFrameSize)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFrames[mNext++ % lFrames.length], 0, lWork, 0, xiFrameSize);
+        lWindow.apply(lWork);
+        sBlackhole = lWork[xiFrameSize / 2];
+      }
+    });
+
+    final RealFFT lFFT = new RealFFT(xiFrameSize);
+    final double[] lRe = new double[lFFT.getNumBins()];
+    final double[] lIm = new double[lFFT.getNumBins()];
+    mBenchmarks.add(new Benchmark("fft:" + xiFrameSize)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFrames[mNext++ % lFrames.length], 0, lWork, 0, xiFrameSize);
+        lFFT.transform(lWork, lRe, lIm);
+        sBlackhole = lRe[1];
+      }
+    });
+
+    // The same, in single precision.
+    final float[][] lFloatFrames = toFloat(lFrames);
+    final float[] lFloatWork = new float[xiFrameSize];
+    mBenchmarks.add(new Benchmark("window.float:" + xiFrameSize)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFloatFrames[mNext++ % lFloatFrames.length], 0,
+                         lFloatWork, 0, xiFrameSize);
+        lWindow.apply(lFloatWork);
+        sBlackhole = lFloatWork[xiFrameSize / 2];
+      }
+    });
+
+    final float[] lFloatRe = new float[lFFT.getNumBins()];
+    final float[] lFloatIm = new float[lFFT.getNumBins()];
+    mBenchmarks.add(new Benchmark("fft.float:" + xiFrameSize)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFloatFrames[mNext++ % lFloatFrames.length], 0,
+                         lFloatWork, 0, xiFrameSize);
+        lFFT.transform(lFloatWork, lFloatRe, lFloatIm);
+        sBlackhole = lFloatRe[1];
+      }
+    });
+  }
+
+  /**
+   * Transformer, Whitener, KlapuriWeightCalculator and PolyphonicEstimator, for
+   * a profile.
+   */
+  private void addStageBenchmarks(AnalysisProfile xiProfile) throws Exception
+  {
+    // Every bundled file is 44.1kHz or 96kHz.  Benchmark at the former.
+    final AudioDescriptor lDescriptor = xiProfile.describe(44100);
+    final int lFrameSize = lDescriptor.mFrameSize;
+    final int lNumBins = lDescriptor.mNumBins;
+    final String lSuffix = ":" + xiProfile.mName;
+    final double[][] lFrames = loadFrames(lFrameSize);
+    final double[] lWork = new double[lFrameSize];
+
+    final Transformer lTransformer = new Transformer(lFrameSize);
+    final double[][] lMagnitudes = new double[lFrames.length][lNumBins];
+    final Whitener lWhitener = new Whitener(lDescriptor);
+    final double[][] lWhitened = new double[lFrames.length][lNumBins];
+    final KlapuriWeightCalculator lCalculator =
+                                      new KlapuriWeightCalculator(lDescriptor);
+    final double[][][] lBandwise = new double[lFrames.length][][];
+    for (int lii = 0; lii < lFrames.length; lii++)
+    {
+      System.arraycopy(lFrames[lii], 0, lWork, 0, lFrameSize);
+      lTransformer.transformMagnitudes(lWork, lMagnitudes[lii]);
+      lWhitener.whiten(lMagnitudes[lii], lWhitened[lii]);
+      lBandwise[lii] = lCalculator.calculateBandwiseWeights(lWhitened[lii]);
+    }
+
+    final double[] lMagnitudeOut = new double[lNumBins];
+    mBenchmarks.add(new Benchmark("transform" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFrames[mNext++ % lFrames.length], 0, lWork, 0, lFrameSize);
+        lTransformer.transformMagnitudes(lWork, lMagnitudeOut);
+        sBlackhole = lMagnitudeOut[1];
+      }
+    });
+
+    final float[][] lFloatFrames = toFloat(lFrames);
+    final float[] lFloatWork = new float[lFrameSize];
+    mBenchmarks.add(new Benchmark("transform.float" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        System.arraycopy(lFloatFrames[mNext++ % lFloatFrames.length], 0,
+                         lFloatWork, 0, lFrameSize);
+        lTransformer.transformMagnitudes(lFloatWork, lMagnitudeOut);
+        sBlackhole = lMagnitudeOut[1];
+      }
+    });
+
+    final double[] lWhitenedOut = new double[lNumBins];
+    mBenchmarks.add(new Benchmark("whiten" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        lWhitener.whiten(lMagnitudes[mNext++ % lMagnitudes.length], lWhitenedOut);
+        sBlackhole = lWhitenedOut[100];
+      }
+    });
+
+    mBenchmarks.add(new Benchmark("bandwiseWeights" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        sBlackhole = lCalculator.calculateBandwiseWeights(
+                             lWhitened[mNext++ % lWhitened.length])[0][100];
+      }
+    });
+
+    mBenchmarks.add(new Benchmark("globalWeights" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        sBlackhole = lCalculator.calculateGlobalWeights(
+                                 lBandwise[mNext++ % lBandwise.length])[100];
+      }
+    });
+
+    final double[][] lGlobal = new double[lFrames.length][];
+    for (int lii = 0; lii < lFrames.length; lii++)
+    {
+      lGlobal[lii] = lCalculator.calculateGlobalWeights(lBandwise[lii]);
+    }
+    final PolyphonicEstimator lEstimator =
+                          new PolyphonicEstimator(lDescriptor, lCalculator);
+    final int[] lF0s = new int[PolyphonicEstimator.MAX_POLYPHONY];
+    final double[] lF0Weights = new double[PolyphonicEstimator.MAX_POLYPHONY];
+    mBenchmarks.add(new Benchmark("polyphony" + lSuffix)
+    {
+      private int mNext;
+
+      @Override
+      public void run()
+      {
+        final int lFrame = mNext++ % lWhitened.length;
+        sBlackhole = lEstimator.estimate(lWhitened[lFrame],
+                                         lBandwise[lFrame],
+                                         lGlobal[lFrame],
+                                         lF0s,
+                                         lF0Weights);
+      }
+    });
+  }
+
+  /**
+   * SlidingDFT against the full transform, for consecutive frames at steps of
+   * 1, 2 and 10ms, for a profile.  Frames are drawn from the first file and
+   * the sliding transform is resynchronised as it is during analysis.
+   */
+  private void addSlidingBenchmarks(AnalysisProfile xiProfile) throws Exception
+  {
+    if (mFiles.length == 0)
+    {
+      return;
+    }
+
+    final int lFrameSize = xiProfile.mFrameSize;
+    for (final int lStepMs : new int[] {1, 2, 10})
+    {
+      final WavFile lWavFile = WavFile.openWavFile(mFiles[0], true);
+      final int lSampleRate = (int)lWavFile.getSampleRate();
+      final int lStepSize = (lSampleRate * lStepMs) / 1000;
+      final AudioDescriptor lDescriptor = xiProfile.describe(lSampleRate);
+      final Whitener lWhitener = new Whitener(lDescriptor);
+      final KlapuriWeightCalculator lCalculator =
+                                      new KlapuriWeightCalculator(lDescriptor);
+
+      final FrameReader lReader = new FrameReader(lWavFile, lFrameSize, lStepSize);
+      final List<double[]> lFrameList = new ArrayList<double[]>();
+      double[] lFrame = new double[lFrameSize];
+      while ((lFrameList.size() < (FRAMES_PER_FILE * 8)) &&
+             (lReader.nextFrame(lFrame)))
+      {
+        lFrameList.add(lFrame);
+        lFrame = new double[lFrameSize];
+      }
+      lWavFile.close();
+      final double[][] lFrames = lFrameList.toArray(new double[lFrameList.size()][]);
+      final double[] lMagnitudes = new double[lDescriptor.mNumBins];
+
+      final SlidingDFT lSlidingDFT =
+         new SlidingDFT(lFrameSize,
+                        lStepSize,
+                        lDescriptor.mMinFreqIndex,
+                        Math.min(lDescriptor.mNumBins,
+                                 Math.max(lWhitener.getEndBin(),
+                                          lCalculator.getEndBin())),
+                        FrameAnalyser.RESYNC_INTERVAL);
+      mBenchmarks.add(new Benchmark("slidingDft:" + lStepMs + "ms:" +
+                                    xiProfile.mName)
+      {
+        private int mNext;
+
+        @Override
+        public void run()
+        {
+          if (mNext == lFrames.length)
+          {
+            mNext = 0;
+            lSlidingDFT.reset();
+          }
+          lSlidingDFT.transformMagnitudes(lFrames[mNext++], lMagnitudes);
+          sBlackhole = lMagnitudes[100];
+        }
+      });
+    }
+  }
+
+  /**
+   * The per-file setup of an analyser (whitener, weight calculator and
+   * transformer), with its tables built from scratch and taken from the
+   * TableCache.
+   */
+  private void addSetupBenchmarks(AnalysisProfile xiProfile)
+  {
+    final AudioDescriptor lDescriptor = xiProfile.describe(44100);
+    for (final boolean lCached : new boolean[] {false, true})
+    {
+      mBenchmarks.add(new Benchmark("setup." + (lCached ? "cached" : "uncached") +
+                                    ":" + xiProfile.mName)
+      {
+        @Override
+        public void run()
+        {
+          if (!lCached)
+          {
+            TableCache.clear();
+          }
+          final FrameAnalyser lAnalyser =
+               new FrameAnalyser(lDescriptor,
+                                 TableCache.getWhitener(lDescriptor),
+                                 TableCache.getWeightCalculator(lDescriptor));
+          sBlackhole = lAnalyser.hashCode();
+        }
+      });
+    }
+  }
+
+  /**
+   * The whole pipeline for each file, for a profile, and for a region of
+   * REGION_SECONDS in the middle of each file (read with random-access reads,
+   * as when re-analysing a region).  The stages are driven directly on the
+   * benchmark thread (as a single-threaded analyser would run them) so that
+   * all allocation is attributed to it.
+   */
+  private void addPipelineBenchmarks(final AnalysisProfile xiProfile)
+  {
+    for (final File lFile : mFiles)
+    {
+      for (final boolean lRegion : new boolean[] {false, true})
+      {
+        addPipelineBenchmark(xiProfile, lFile, lRegion);
+      }
+    }
+  }
+
+  /**
+   * A pipeline benchmark for a file, or for a region of it.
+   */
+  private void addPipelineBenchmark(final AnalysisProfile xiProfile,
+                                    final File xiFile,
+                                    final boolean xiRegion)
+  {
+    mBenchmarks.add(new Benchmark((xiRegion ? "region:" : "pipeline:") +
+                                  xiFile.getName() + ":" + xiProfile.mName)
+    {
+      @Override
+      public void run() throws Exception
+      {
+        final WavFile lWavFile = WavFile.openWavFile(xiFile, true);
+        final AudioDescriptor lDescriptor =
+                       xiProfile.describe((int)lWavFile.getSampleRate());
+        final int lStepSize = xiProfile.getStepSize(lWavFile.getSampleRate());
+        final long lRegionFrames = REGION_SECONDS * lWavFile.getSampleRate();
+        final long lRegionStart =
+              Math.max(0, (lWavFile.getNumFrames() - lRegionFrames) / 2);
+        final FrameAnalyser lAnalyser =
+             new FrameAnalyser(lDescriptor,
+                               TableCache.getWhitener(lDescriptor),
+                               TableCache.getWeightCalculator(lDescriptor),
+                               lStepSize);
+        final FrameAnalysis lResult = new FrameAnalysis(lDescriptor);
+        final FrameReader lReader = !xiRegion ?
+                new FrameReader(lWavFile, lDescriptor.mFrameSize, lStepSize) :
+                new FrameReader(lWavFile,
+                                WavFile.MIX_DOWN,
+                                lRegionStart,
+                                lRegionFrames + lDescriptor.mFrameSize,
+                                lDescriptor.mFrameSize,
+                                lStepSize);
+        if (xiProfile.mSinglePrecision)
+        {
+          final float[] lFrame = new float[lDescriptor.mFrameSize];
+          while (lReader.nextFrame(lFrame))
+          {
+            lAnalyser.analyse(lFrame, lResult);
+            sBlackhole = lResult.mGlobalWeights[100];
+          }
+        }
+        else
+        {
+          final double[] lFrame = new double[lDescriptor.mFrameSize];
+          while (lReader.nextFrame(lFrame))
+          {
+            lAnalyser.analyse(lFrame, lResult);
+            sBlackhole = lResult.mGlobalWeights[100];
+          }
+        }
+        lWavFile.close();
+      }
+    });
+  }
+
+  /**
+   * Load frames, spread evenly through each of the files.
+   */
+  private double[][] loadFrames(int xiFrameSize) throws Exception
+  {
+    final List<double[]> lFrames = new ArrayList<double[]>();
+    for (final File lFile : mFiles)
+    {
+      final WavFile lWavFile = WavFile.openWavFile(lFile, true);
+      final long lStep = Math.max(1, (lWavFile.getNumFrames() - xiFrameSize) /
+                                                              FRAMES_PER_FILE);
+      final FrameReader lReader = new FrameReader(lWavFile,
+                                                  xiFrameSize,
+                                                  (int)Math.min(lStep, Integer.MAX_VALUE));
+      double[] lFrame = new double[xiFrameSize];
+      while (lReader.nextFrame(lFrame))
+      {
+        lFrames.add(lFrame);
+        lFrame = new double[xiFrameSize];
+      }
+      lWavFile.close();
+    }
+    return lFrames.toArray(new double[lFrames.size()][]);
+  }
+
+  /**
+   * Convert frames to single precision.
+   */
+  private static float[][] toFloat(double[][] xiFrames)
+  {
+    final float[][] lFrames = new float[xiFrames.length][];
+    for (int lii = 0; lii < xiFrames.length; lii++)
+    {
+      lFrames[lii] = new float[xiFrames[lii].length];
+      for (int ljj = 0; ljj < xiFrames[lii].length; ljj++)
+      {
+        lFrames[lii][ljj] = (float)xiFrames[lii][ljj];
+      }
+    }
+    return lFrames;
+  }
+
+  /**
+   * Warm up and measure a benchmark, printing the results.
+   */
+  private static void measure(Benchmark xiBenchmark) throws Exception
+  {
+    final java.lang.management.ThreadMXBean lThreadBean =
+                                      ManagementFactory.getThreadMXBean();
+    final com.sun.management.ThreadMXBean lAllocationBean =
+                      (lThreadBean instanceof com.sun.management.ThreadMXBean) ?
+                        (com.sun.management.ThreadMXBean)lThreadBean : null;
+    final long lThreadId = Thread.currentThread().getId();
+
+    // Warm up.
+    long lStart = System.nanoTime();
+    while ((System.nanoTime() - lStart) < WARMUP_NANOS)
+    {
+      xiBenchmark.run();
+    }
+
+    // Measure.
+    long lOps = 0;
+    long lElapsed = 0;
+    long lAllocated = 0;
+    for (int lIteration = 0; lIteration < ITERATIONS; lIteration++)
+    {
+      final long lAllocatedBefore = (lAllocationBean == null) ? 0 :
+                           lAllocationBean.getThreadAllocatedBytes(lThreadId);
+      lStart = System.nanoTime();
+      long lNow = lStart;
+      while ((lNow - lStart) < ITERATION_NANOS)
+      {
+        xiBenchmark.run();
+        lOps++;
+        lNow = System.nanoTime();
+      }
+      lElapsed += lNow - lStart;
+      if (lAllocationBean != null)
+      {
+        lAllocated += lAllocationBean.getThreadAllocatedBytes(lThreadId) -
+                                                             lAllocatedBefore;
+      }
+    }
+
+    System.out.println(String.format(Locale.ROOT,
+                                     "%-48s %14.1f %14.1f %12.1f",
+                                     xiBenchmark.mName,
+                                     (double)lElapsed / lOps,
+                                     (double)lAllocated / lOps,
+                                     (lAllocated / 1048576.0) / (lElapsed / 1e9)));
+  }
+}
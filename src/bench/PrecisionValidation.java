@@ -0,0 +1,187 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import core.AnalysisProfile;
+import core.F0Estimator;
+import core.FrameAnalysis;
+import core.ResultSink;
+
+/**
+ * Validates the single-precision pipeline against the double-precision one.
+ *
+ * Each bundled WAV file is analysed in both precisions and the F0 tracks -
+ * the strongest candidate in each frame - are compared.  For each file the
+ * proportion of frames with the same F0, the largest difference in F0 (in
+ * bins) and the largest relative difference in its weight are reported,
+ * along with the time taken in each precision.
+ *
+ * Exits with a non-zero status if any file's tracks agree on fewer than
+ * MIN_AGREEMENT of frames.
+ */
+public class PrecisionValidation
+{
+  /**
+   * The minimum proportion of frames whose F0 must agree.
+   */
+  private static final double MIN_AGREEMENT = 0.99;
+
+  /**
+   * Records the F0 track of an analysis.
+   */
+  private static class TrackRecorder implements ResultSink
+  {
+    public final List<Integer> mBins = new ArrayList<Integer>();
+    public final List<Double> mWeights = new ArrayList<Double>();
+
+    @Override
+    public void addFrame(FrameAnalysis xiFrame)
+    {
+      final double[] lGlobalWeights = xiFrame.mGlobalWeights;
+      int lMaxIndex = 0;
+      for (int lii = 1; lii < lGlobalWeights.length; lii++)
+      {
+        if (lGlobalWeights[lii] > lGlobalWeights[lMaxIndex])
+        {
+          lMaxIndex = lii;
+        }
+      }
+      mBins.add(lMaxIndex);
+      mWeights.add(lGlobalWeights[lMaxIndex]);
+    }
+
+    @Override
+    public void close()
+    {
+      // Nothing to do.
+    }
+  }
+
+  /**
+   * Run the validation.
+   *
+   * @param xiArgs - [-data DIR] [-step MS].  The data directory defaults to
+   * "data" and the step to the standard profile's.
+   * @throws Exception if anything goes wrong.
+   */
+  public static void main(String[] xiArgs) throws Exception
+  {
+    File lDataDir = new File("data");
+    double lStepMs = AnalysisProfile.STANDARD.mStepMs;
+    for (int lii = 0; lii < xiArgs.length; lii++)
+    {
+      if (xiArgs[lii].equals("-data"))
+      {
+        lDataDir = new File(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-step"))
+      {
+        lStepMs = Double.parseDouble(xiArgs[++lii]);
+      }
+    }
+
+    final File[] lFiles = lDataDir.listFiles();
+    if (lFiles == null)
+    {
+      System.err.println("No such data directory: " + lDataDir);
+      System.exit(1);
+    }
+    Arrays.sort(lFiles);
+
+    System.out.println(String.format(Locale.ROOT,
+                                     "%-28s %8s %10s %9s %12s %10s %10s",
+                                     "File",
+                                     "frames",
+                                     "agreement",
+                                     "max bins",
+                                     "max rel wt",
+                                     "double ms",
+                                     "float ms"));
+    boolean lPassed = true;
+    for (final File lFile : lFiles)
+    {
+      if (!lFile.getName().endsWith(".wav"))
+      {
+        continue;
+      }
+
+      final long lDoubleStart = System.nanoTime();
+      final TrackRecorder lDouble = analyse(lFile, lStepMs, false);
+      final long lFloatStart = System.nanoTime();
+      final TrackRecorder lFloat = analyse(lFile, lStepMs, true);
+      final long lEnd = System.nanoTime();
+
+      final int lFrames = lDouble.mBins.size();
+      if (lFloat.mBins.size() != lFrames)
+      {
+        System.out.println(lFile.getName() + ": frame counts differ (" +
+                           lFrames + " / " + lFloat.mBins.size() + ")");
+        lPassed = false;
+        continue;
+      }
+
+      int lAgreed = 0;
+      int lMaxBins = 0;
+      double lMaxRelativeWeight = 0;
+      for (int lii = 0; lii < lFrames; lii++)
+      {
+        final int lDoubleBin = lDouble.mBins.get(lii);
+        final int lFloatBin = lFloat.mBins.get(lii);
+        if (lDoubleBin == lFloatBin)
+        {
+          lAgreed++;
+          final double lDoubleWeight = lDouble.mWeights.get(lii);
+          if (lDoubleWeight > 0)
+          {
+            lMaxRelativeWeight =
+                Math.max(lMaxRelativeWeight,
+                         Math.abs(lFloat.mWeights.get(lii) - lDoubleWeight) /
+                                                                 lDoubleWeight);
+          }
+        }
+        lMaxBins = Math.max(lMaxBins, Math.abs(lDoubleBin - lFloatBin));
+      }
+
+      final double lAgreement = (lFrames == 0) ? 1 : (double)lAgreed / lFrames;
+      lPassed &= (lAgreement >= MIN_AGREEMENT);
+      System.out.println(String.format(Locale.ROOT,
+                                       "%-28s %8d %9.2f%% %9d %12.2e %10.0f %10.0f",
+                                       lFile.getName(),
+                                       lFrames,
+                                       lAgreement * 100,
+                                       lMaxBins,
+                                       lMaxRelativeWeight,
+                                       (lFloatStart - lDoubleStart) / 1e6,
+                                       (lEnd - lFloatStart) / 1e6));
+    }
+
+    System.out.println(lPassed ? "PASSED" : "FAILED");
+    if (!lPassed)
+    {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Analyse a file, on a single thread, recording its F0 track.
+   */
+  private static TrackRecorder analyse(File xiFile,
+                                       double xiStepMs,
+                                       boolean xiSinglePrecision)
+    throws Exception
+  {
+    final F0Estimator lEstimator =
+       new F0Estimator(xiFile.getPath(),
+                       1,
+                       AnalysisProfile.STANDARD.withStepMs(xiStepMs)
+                                        .withSinglePrecision(xiSinglePrecision));
+    final TrackRecorder lRecorder = new TrackRecorder();
+    lEstimator.addSink(lRecorder);
+    lEstimator.process();
+    return lRecorder;
+  }
+}
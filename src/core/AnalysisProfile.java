@@ -0,0 +1,283 @@
+package core;
+
+import java.util.Locale;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * The parameters of an analysis: frame size, step between frames, frequency
+ * range and precision.
+ *
+ * Presets trade accuracy for speed:
+ * - standard: 4096-sample frames (93ms at 44.1kHz) every 10ms, 50Hz-6kHz;
+ * - lowlatency: 2048-sample frames (46ms) every 5ms in single precision, with
+ *   twice as wide frequency bins and so coarser F0 estimates;
+ * - bass: 8192-sample frames (186ms) every 10ms, 25Hz-3kHz, for resolving
+ *   low notes (at 5.4Hz per bin).
+ * Any parameter of a preset may be overridden from the command line (see
+ * {@link #withOption(String, String)}).
+ *
+ * Profiles are immutable.  The tables built for a profile (see
+ * {@link TableCache}) are keyed by its frame size and frequency range, so
+ * analyses with different profiles each use their own.
+ */
+public class AnalysisProfile
+{
+  /**
+   * The default profile.
+   */
+  public static final AnalysisProfile STANDARD =
+                  new AnalysisProfile("standard", 4096, 10, 50, 6000, false);
+
+  /**
+   * Smaller frames, for lower latency and faster analysis.
+   */
+  public static final AnalysisProfile LOW_LATENCY =
+                  new AnalysisProfile("lowlatency", 2048, 5, 50, 6000, true);
+
+  /**
+   * Larger frames, for resolving low F0s.
+   */
+  public static final AnalysisProfile BASS =
+                  new AnalysisProfile("bass", 8192, 10, 25, 3000, false);
+
+  private static final AnalysisProfile[] PRESETS = {STANDARD, LOW_LATENCY, BASS};
+
+  /**
+   * Usage of the command-line options accepted by
+   * {@link #withOption(String, String)}.
+   */
+  public static final String USAGE = "[-profile standard|lowlatency|bass] " +
+                                     "[-frame N] [-step MS] [-range MIN-MAX] " +
+                                     "[-precision double|float]";
+
+  /**
+   * The name of the preset this profile is (or is derived from).
+   */
+  public final String mName;
+
+  /**
+   * The frame size (in samples).  A power of 2.
+   */
+  public final int mFrameSize;
+
+  /**
+   * The step between successive frames (in milliseconds).
+   */
+  public final double mStepMs;
+
+  /**
+   * The minimum F0 candidate (in Hz).
+   */
+  public final int mMinFreq;
+
+  /**
+   * The maximum F0 candidate, and maximum frequency that will be considered
+   * as a possible harmonic of a lower F0 (in Hz).
+   */
+  public final int mMaxFreq;
+
+  /**
+   * Whether frames are read and transformed in single precision.
+   */
+  public final boolean mSinglePrecision;
+
+  /**
+   * Create an analysis profile.
+   *
+   * @param xiName - the name of the profile.
+   * @param xiFrameSize - the frame size (in samples).  Must be a power of 2.
+   * @param xiStepMs - the step between successive frames (in milliseconds).
+   * @param xiMinFreq - the minimum F0 candidate (in Hz).
+   * @param xiMaxFreq - the maximum frequency considered (in Hz).
+   * @param xiSinglePrecision - whether to read and transform frames in
+   * single precision.
+   */
+  public AnalysisProfile(String xiName,
+                         int xiFrameSize,
+                         double xiStepMs,
+                         int xiMinFreq,
+                         int xiMaxFreq,
+                         boolean xiSinglePrecision)
+  {
+    if ((xiFrameSize < 256) || (Integer.bitCount(xiFrameSize) != 1))
+    {
+      throw new IllegalArgumentException(
+                     "Frame size must be a power of 2 (256 or more): " + xiFrameSize);
+    }
+    if (!(xiStepMs > 0))
+    {
+      throw new IllegalArgumentException("Step must be positive: " + xiStepMs);
+    }
+    if ((xiMinFreq <= 0) || (xiMaxFreq <= xiMinFreq))
+    {
+      throw new IllegalArgumentException("Invalid frequency range: " +
+                                         xiMinFreq + "-" + xiMaxFreq);
+    }
+
+    mName = xiName;
+    mFrameSize = xiFrameSize;
+    mStepMs = xiStepMs;
+    mMinFreq = xiMinFreq;
+    mMaxFreq = xiMaxFreq;
+    mSinglePrecision = xiSinglePrecision;
+  }
+
+  /**
+   * @param xiName - the name of a preset.
+   * @return the preset.
+   * @throws IllegalArgumentException if there is no such preset.
+   */
+  public static AnalysisProfile forName(String xiName)
+  {
+    for (final AnalysisProfile lPreset : PRESETS)
+    {
+      if (lPreset.mName.equalsIgnoreCase(xiName))
+      {
+        return lPreset;
+      }
+    }
+    throw new IllegalArgumentException("No such profile: " + xiName);
+  }
+
+  /**
+   * @return the presets.
+   */
+  public static AnalysisProfile[] getPresets()
+  {
+    return PRESETS.clone();
+  }
+
+  /**
+   * @param xiOption - a command-line argument.
+   * @return whether it is one of the options in {@link #USAGE} (each of which
+   * takes a value).
+   */
+  public static boolean isOption(String xiOption)
+  {
+    return xiOption.equals("-profile") ||
+           xiOption.equals("-frame") ||
+           xiOption.equals("-step") ||
+           xiOption.equals("-range") ||
+           xiOption.equals("-precision");
+  }
+
+  /**
+   * Apply a command-line option.  -profile replaces the whole profile with a
+   * preset, so should come before any of the others.
+   *
+   * @param xiOption - the option (see {@link #isOption(String)}).
+   * @param xiValue - its value.
+   * @return the resulting profile.
+   * @throws IllegalArgumentException if the option or value is invalid.
+   */
+  public AnalysisProfile withOption(String xiOption, String xiValue)
+  {
+    if (xiOption.equals("-profile"))
+    {
+      return forName(xiValue);
+    }
+    else if (xiOption.equals("-frame"))
+    {
+      return withFrameSize(Integer.parseInt(xiValue));
+    }
+    else if (xiOption.equals("-step"))
+    {
+      return withStepMs(Double.parseDouble(xiValue));
+    }
+    else if (xiOption.equals("-range"))
+    {
+      final String[] lRange = xiValue.split("-");
+      if (lRange.length != 2)
+      {
+        throw new IllegalArgumentException("Range must be MIN-MAX: " + xiValue);
+      }
+      return withFrequencyRange(Integer.parseInt(lRange[0].trim()),
+                                Integer.parseInt(lRange[1].trim()));
+    }
+    else if (xiOption.equals("-precision"))
+    {
+      if (!xiValue.equals("float") && !xiValue.equals("double"))
+      {
+        throw new IllegalArgumentException("Precision must be float or double: " +
+                                           xiValue);
+      }
+      return withSinglePrecision(xiValue.equals("float"));
+    }
+    throw new IllegalArgumentException("Not a profile option: " + xiOption);
+  }
+
+  /**
+   * @param xiFrameSize - the frame size (in samples).
+   * @return a copy of this profile with the given frame size.
+   */
+  public AnalysisProfile withFrameSize(int xiFrameSize)
+  {
+    return new AnalysisProfile(mName, xiFrameSize, mStepMs, mMinFreq, mMaxFreq,
+                               mSinglePrecision);
+  }
+
+  /**
+   * @param xiStepMs - the step between frames (in milliseconds).
+   * @return a copy of this profile with the given step.
+   */
+  public AnalysisProfile withStepMs(double xiStepMs)
+  {
+    return new AnalysisProfile(mName, mFrameSize, xiStepMs, mMinFreq, mMaxFreq,
+                               mSinglePrecision);
+  }
+
+  /**
+   * @param xiMinFreq - the minimum F0 candidate (in Hz).
+   * @param xiMaxFreq - the maximum frequency considered (in Hz).
+   * @return a copy of this profile with the given frequency range.
+   */
+  public AnalysisProfile withFrequencyRange(int xiMinFreq, int xiMaxFreq)
+  {
+    return new AnalysisProfile(mName, mFrameSize, mStepMs, xiMinFreq, xiMaxFreq,
+                               mSinglePrecision);
+  }
+
+  /**
+   * @param xiSinglePrecision - whether to read and transform frames in
+   * single precision.
+   * @return a copy of this profile with the given precision.
+   */
+  public AnalysisProfile withSinglePrecision(boolean xiSinglePrecision)
+  {
+    return new AnalysisProfile(mName, mFrameSize, mStepMs, mMinFreq, mMaxFreq,
+                               xiSinglePrecision);
+  }
+
+  /**
+   * @param xiSampleRate - the sample rate (per second) of the audio.
+   * @return the description of audio at the given rate analysed with this
+   * profile.
+   */
+  public AudioDescriptor describe(int xiSampleRate)
+  {
+    return new AudioDescriptor(xiSampleRate, this);
+  }
+
+  /**
+   * @param xiSampleRate - the sample rate (per second) of the audio.
+   * @return the step between successive frames (in samples, at least 1).
+   */
+  public int getStepSize(double xiSampleRate)
+  {
+    return Math.max(1, (int)((xiSampleRate * mStepMs) / 1000));
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(Locale.ROOT,
+                         "%s (frame %d, step %sms, %d-%dHz, %s precision)",
+                         mName,
+                         mFrameSize,
+                         Double.toString(mStepMs),
+                         mMinFreq,
+                         mMaxFreq,
+                         mSinglePrecision ? "single" : "double");
+  }
+}
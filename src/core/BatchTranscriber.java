@@ -0,0 +1,364 @@
+package core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless batch transcription of many WAV files.
+ *
+ * Files are processed by a bounded pool of workers, each running its own
+ * single-threaded F0 estimator.  The F0 track for each file is streamed to
+ * &lt;output directory&gt;/&lt;file name&gt;.f0.txt (see {@link F0TrackWriter})
+ * and its notes to &lt;file name&gt;.mid (see {@link NoteTracker} and
+ * {@link MidiFileWriter}).  Throughput, in seconds of audio per second, is
+ * reported for each file and for the batch as a whole.
+ *
+ * Multi-channel files are mixed down to mono by default.  Alternatively a
+ * single channel may be selected, or each channel analysed separately - as
+ * its own job in the pool, so channels are analysed in parallel - with the
+ * track and notes for channel N written to &lt;file name&gt;.chN.f0.txt and
+ * &lt;file name&gt;.chN.mid.
+ */
+public class BatchTranscriber
+{
+  /**
+   * Channel selection to analyse each channel of a file separately.
+   */
+  public static final int EACH_CHANNEL = -2;
+
+  private final File mOutputDir;
+  private final int mWorkers;
+  private final AnalysisProfile mProfile;
+  private final int mChannels;
+
+  // Cache of intermediate results shared by the workers, or null.
+  private StageCache mStageCache;
+
+  // Aggregate statistics, guarded by this.
+  private int mFilesDone;
+  private int mFilesFailed;
+  private double mAudioSeconds;
+
+  /**
+   * Run a batch transcription.
+   *
+   * @param xiArgs - [-workers N] [-out DIR] [-channels mix|each|N]
+   * [-cache DIR] [profile options] INPUT...  Each INPUT is a WAV file, a directory (all
+   * .wav files in it are processed) or @LISTFILE (a text file listing one
+   * input per line).  Workers default to one per processor, the output
+   * directory to the current directory, channels to a mix of all of them and
+   * the profile to the standard one (see {@link AnalysisProfile#USAGE} for
+   * the options).  -cache keeps intermediate results in a
+   * {@link StageCache}, so that files analysed before needn't be transformed
+   * again.
+   * @throws Exception if anything goes wrong.
+   */
+  public static void main(String[] xiArgs) throws Exception
+  {
+    int lWorkers = Runtime.getRuntime().availableProcessors();
+    File lOutputDir = new File(".");
+    AnalysisProfile lProfile = AnalysisProfile.STANDARD;
+    int lChannels = WavFile.MIX_DOWN;
+    File lCacheDir = null;
+    final List<File> lInputs = new ArrayList<File>();
+
+    for (int lii = 0; lii < xiArgs.length; lii++)
+    {
+      if (xiArgs[lii].equals("-workers"))
+      {
+        lWorkers = Integer.parseInt(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-out"))
+      {
+        lOutputDir = new File(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-channels"))
+      {
+        final String lValue = xiArgs[++lii];
+        lChannels = lValue.equals("mix") ? WavFile.MIX_DOWN :
+                    lValue.equals("each") ? EACH_CHANNEL :
+                                            Integer.parseInt(lValue);
+      }
+      else if (xiArgs[lii].equals("-cache"))
+      {
+        lCacheDir = new File(xiArgs[++lii]);
+      }
+      else if (AnalysisProfile.isOption(xiArgs[lii]))
+      {
+        lProfile = lProfile.withOption(xiArgs[lii], xiArgs[++lii]);
+      }
+      else
+      {
+        addInput(xiArgs[lii], lInputs);
+      }
+    }
+
+    if (lInputs.isEmpty())
+    {
+      System.err.println("Usage: BatchTranscriber [-workers N] [-out DIR] " +
+                         "[-channels mix|each|N] [-cache DIR] " +
+                         AnalysisProfile.USAGE +
+                         " <file | directory | @listfile>...");
+      System.exit(1);
+    }
+
+    lOutputDir.mkdirs();
+    final BatchTranscriber lTranscriber =
+                 new BatchTranscriber(lOutputDir, lWorkers, lProfile, lChannels);
+    if (lCacheDir != null)
+    {
+      lTranscriber.setStageCache(new StageCache(lCacheDir));
+    }
+    lTranscriber.run(lInputs);
+  }
+
+  /**
+   * Add an input (file, directory or @listfile) to the list of WAV files.
+   */
+  private static void addInput(String xiInput, List<File> xoFiles)
+    throws IOException
+  {
+    if (xiInput.startsWith("@"))
+    {
+      final BufferedReader lReader =
+                        new BufferedReader(new FileReader(xiInput.substring(1)));
+      try
+      {
+        String lLine;
+        while ((lLine = lReader.readLine()) != null)
+        {
+          if (!lLine.trim().isEmpty())
+          {
+            addInput(lLine.trim(), xoFiles);
+          }
+        }
+      }
+      finally
+      {
+        lReader.close();
+      }
+    }
+    else
+    {
+      final File lFile = new File(xiInput);
+      if (lFile.isDirectory())
+      {
+        final File[] lChildren = lFile.listFiles();
+        Arrays.sort(lChildren);
+        for (final File lChild : lChildren)
+        {
+          if (lChild.isFile() &&
+              lChild.getName().toLowerCase(Locale.ROOT).endsWith(".wav"))
+          {
+            xoFiles.add(lChild);
+          }
+        }
+      }
+      else
+      {
+        xoFiles.add(lFile);
+      }
+    }
+  }
+
+  /**
+   * Create a batch transcriber, mixing multi-channel files down to mono.
+   *
+   * @param xiOutputDir - the directory in which to write F0 tracks.
+   * @param xiWorkers - the number of files to process concurrently.
+   * @param xiProfile - the analysis profile.
+   */
+  public BatchTranscriber(File xiOutputDir,
+                          int xiWorkers,
+                          AnalysisProfile xiProfile)
+  {
+    this(xiOutputDir, xiWorkers, xiProfile, WavFile.MIX_DOWN);
+  }
+
+  /**
+   * Create a batch transcriber.
+   *
+   * @param xiOutputDir - the directory in which to write F0 tracks.
+   * @param xiWorkers - the number of files (or channels) to process
+   * concurrently.
+   * @param xiProfile - the analysis profile.
+   * @param xiChannels - the channel to analyse, WavFile.MIX_DOWN to mix all
+   * channels down to mono or EACH_CHANNEL to analyse every channel
+   * separately.
+   */
+  public BatchTranscriber(File xiOutputDir,
+                          int xiWorkers,
+                          AnalysisProfile xiProfile,
+                          int xiChannels)
+  {
+    mOutputDir = xiOutputDir;
+    mWorkers = xiWorkers;
+    mProfile = xiProfile;
+    mChannels = xiChannels;
+  }
+
+  /**
+   * Use a cache of intermediate results for every file.  See
+   * {@link F0Estimator#setStageCache(StageCache)}.
+   *
+   * @param xiCache - the cache.
+   */
+  public void setStageCache(StageCache xiCache)
+  {
+    mStageCache = xiCache;
+  }
+
+  /**
+   * Transcribe the files, returning when all are complete.
+   *
+   * @param xiFiles - the WAV files.
+   * @throws InterruptedException if interrupted while waiting for the workers.
+   */
+  public void run(List<File> xiFiles) throws InterruptedException
+  {
+    final long lStartTime = System.nanoTime();
+
+    final ExecutorService lPool = Executors.newFixedThreadPool(mWorkers);
+    for (final File lFile : xiFiles)
+    {
+      if (mChannels == EACH_CHANNEL)
+      {
+        final int lNumChannels = getNumChannels(lFile);
+        for (int lii = 0; lii < lNumChannels; lii++)
+        {
+          submit(lPool, lFile, lii);
+        }
+      }
+      else
+      {
+        submit(lPool, lFile, mChannels);
+      }
+    }
+    lPool.shutdown();
+    lPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+    final double lElapsed = (System.nanoTime() - lStartTime) / 1e9;
+    synchronized (this)
+    {
+      System.out.println(String.format(Locale.ROOT,
+                                       "Batch: %d files (%d failed), %.1fs of " +
+                                       "audio in %.1fs = %.1fx real-time",
+                                       mFilesDone,
+                                       mFilesFailed,
+                                       mAudioSeconds,
+                                       lElapsed,
+                                       mAudioSeconds / lElapsed));
+    }
+  }
+
+  /**
+   * Submit the transcription of a file (or one channel of it) to the pool.
+   */
+  private void submit(ExecutorService xiPool,
+                      final File xiFile,
+                      final int xiChannel)
+  {
+    xiPool.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        transcribe(xiFile, xiChannel);
+      }
+    });
+  }
+
+  /**
+   * @return the number of channels in a file, or 1 if it can't be read (in
+   * which case its transcription will report the failure).
+   */
+  private static int getNumChannels(File xiFile)
+  {
+    try
+    {
+      final WavFile lWavFile = WavFile.openWavFile(xiFile);
+      lWavFile.close();
+      return lWavFile.getNumChannels();
+    }
+    catch (final Exception lEx)
+    {
+      return 1;
+    }
+  }
+
+  /**
+   * Transcribe a single file, or one channel of it.
+   */
+  private void transcribe(File xiFile, int xiChannel)
+  {
+    final long lStartTime = System.nanoTime();
+    final String lName = (xiChannel == WavFile.MIX_DOWN) ?
+                                       xiFile.getName() :
+                                       xiFile.getName() + ".ch" + xiChannel;
+    try
+    {
+      final F0Estimator lEstimator = new F0Estimator(xiFile.getPath(),
+                                                     1,
+                                                     mProfile,
+                                                     xiChannel);
+      try
+      {
+        lEstimator.addSink(new F0TrackWriter(new File(mOutputDir,
+                                                      lName + ".f0.txt"),
+                                             lEstimator.getAudioDescriptor()));
+        lEstimator.addSink(new NoteTracker(lEstimator.getAudioDescriptor(),
+                                           new MidiFileWriter(
+                                             new File(mOutputDir,
+                                                      lName + ".mid"))));
+      }
+      catch (final IOException lEx)
+      {
+        lEstimator.close();
+        throw lEx;
+      }
+      if (mStageCache != null)
+      {
+        lEstimator.setStageCache(mStageCache);
+      }
+      lEstimator.process();
+
+      final double lElapsed = (System.nanoTime() - lStartTime) / 1e9;
+      final double lAudioSeconds = lEstimator.getDurationSeconds();
+      synchronized (this)
+      {
+        mFilesDone++;
+        mAudioSeconds += lAudioSeconds;
+        System.out.println(String.format(Locale.ROOT,
+                                         "%s: %.1fs of audio in %.2fs = " +
+                                         "%.1fx real-time",
+                                         (xiChannel == WavFile.MIX_DOWN) ?
+                                            xiFile.getPath() :
+                                            xiFile + " channel " + xiChannel,
+                                         lAudioSeconds,
+                                         lElapsed,
+                                         lAudioSeconds / lElapsed));
+      }
+    }
+    catch (final Exception lEx)
+    {
+      synchronized (this)
+      {
+        mFilesDone++;
+        mFilesFailed++;
+        System.err.println(xiFile +
+                           ((xiChannel == WavFile.MIX_DOWN) ?
+                                          "" : " channel " + xiChannel) +
+                           ": failed - " + lEx);
+      }
+    }
+  }
+}
@@ -2,12 +2,11 @@ package core;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.apache.commons.math3.complex.Complex;
-
-import ui.SpectogramWindow;
-import ui.WeightWindow;
+import ui.AnalysisDisplay;
+import core.StageCache.Stage;
 import core.WavFile.WavFileException;
 
 /**
@@ -21,30 +20,20 @@ public class F0Estimator
   public static class AudioDescriptor
   {
     /**
-     * The frame size (in samples) for estimates.
-     *
-     * Assuming a sample rate of 44,100 samples/seconds...
-     *
-     * - Frame size 2048 = 46ms
-     * - Frame size 4096 = 92ms
-     */
-    public static final int FRAME_SIZE = 4096;
-
-    /**
-     * The minimum F0 candidate.
+     * Sample rate (per second).
      */
-    public static final int FREQ_MIN = 50;
+    public final int mSampleRate;
 
     /**
-     * The maximum F0 candidate (and maximum frequency that will be considered
-     * as a possible harmonic of a lower F0).
+     * The frame size (in samples) for estimates.
      */
-    public static final int FREQ_MAX = 6000;
+    public final int mFrameSize;
 
     /**
-     * Sample rate (per second).
+     * The number of non-redundant frequency bins produced by transforming a
+     * frame.
      */
-    public final int mSampleRate;
+    public final int mNumBins;
 
     /**
      * Size a single FFT bucket (in Hz).
@@ -65,68 +54,302 @@ public class F0Estimator
      * Create an audio descriptor.
      *
      * @param xiSampleRate - the sample rate (per second) of the audio.
-     * @param xiBucketSizeHz - the Fourier transform bucket size (in Hz).
+     * @param xiProfile - the analysis profile.
      */
-    public AudioDescriptor(int xiSampleRate, int xiBucketSizeHz)
+    public AudioDescriptor(int xiSampleRate, AnalysisProfile xiProfile)
     {
       mSampleRate = xiSampleRate;
-      mBucketSizeHz = xiBucketSizeHz;
+      mFrameSize = xiProfile.mFrameSize;
+      mNumBins = (mFrameSize / 2) + 1;
+      mBucketSizeHz = (double)xiSampleRate / mFrameSize;
+
+      // Find the FFT buckets containing the lowest and highest frequencies
+      // that we'll be dealing with.
+      mMinFreqIndex = Math.max(1, (int)(xiProfile.mMinFreq / mBucketSizeHz));
+      mMaxFreqIndex = Math.min(mNumBins - 1,
+                               (int)Math.ceil(xiProfile.mMaxFreq / mBucketSizeHz));
+      if (mMinFreqIndex >= mMaxFreqIndex)
+      {
+        throw new IllegalArgumentException("Frequency range " + xiProfile.mMinFreq +
+                                           "-" + xiProfile.mMaxFreq +
+                                           "Hz is empty at " + xiSampleRate + "Hz");
+      }
+    }
+
+    @Override
+    public boolean equals(Object xiOther)
+    {
+      if (!(xiOther instanceof AudioDescriptor))
+      {
+        return false;
+      }
+      final AudioDescriptor lOther = (AudioDescriptor)xiOther;
+      return (mSampleRate == lOther.mSampleRate) &&
+             (mFrameSize == lOther.mFrameSize) &&
+             (mMinFreqIndex == lOther.mMinFreqIndex) &&
+             (mMaxFreqIndex == lOther.mMaxFreqIndex);
+    }
 
-      // Find the FFT buckets containing the lowest (50Hz) and highest (6kHz)
-      // frequencies that we'll be dealing with.
-      mMinFreqIndex = (int)(FREQ_MIN / mBucketSizeHz);
-      mMaxFreqIndex = (int)Math.ceil(FREQ_MAX / mBucketSizeHz);
+    @Override
+    public int hashCode()
+    {
+      return (((((mSampleRate * 31) + mFrameSize) * 31) + mMinFreqIndex) * 31) +
+             mMaxFreqIndex;
     }
   }
 
   // The audio file being transformed.
+  private final File mFile;
   private final WavFile mWaveFile;
 
+  // The analysis profile.
+  private final AnalysisProfile mProfile;
+
+  // The channel analysed (or WavFile.MIX_DOWN).
+  private final int mChannel;
+
+  // The step between successive frames (in samples).
+  private final int mStepSize;
+
   // Parameters of the audio.
   private final AudioDescriptor mAudioDescriptor;
 
-  // Core objects for doing F0 estimation
-  private final Transformer mTransformer;
-  private final Whitener mWhitener;
-  private final KlapuriWeightCalculator mWeightCalculator;
+  // Core object for doing F0 estimation
+  private final ParallelAnalyser mAnalyser;
 
-  // UI objects for visualisation
-  private final SpectogramWindow mSpecWindow;
-  private final WeightWindow mBandwiseWeightWindow;
-  private final SpectogramWindow mGlobalWeightWindow;
+  // Receivers of the results
+  private final List<ResultSink> mSinks = new ArrayList<ResultSink>();
+
+  // Cache of intermediate results, or null.
+  private StageCache mStageCache;
 
   /**
    * Run the multiple F0 estimator.
    *
-   * @param xiArgs - First arg (mandatory) is file to transform.
+   * @param xiArgs - [-threads N] [-channel mix|N] [-save SPECTROGRAM]
+   *                 [-quantise] [-cache DIR] [profile options] FILE.  Threads default to
+   *                 one per processor, the channel to a mix of all channels
+   *                 and the profile to {@link AnalysisProfile#STANDARD}; see
+   *                 {@link AnalysisProfile#USAGE} for the profile options.
+   *                 -save also writes the whitened spectra and global weights
+   *                 to a file (see {@link SpectrogramWriter}), quantised to 16
+   *                 bits with -quantise.  -cache DIR keeps intermediate
+   *                 results in a {@link StageCache}.
    * @throws Exception if anything goes wrong.
    */
   public static void main(String[] xiArgs) throws Exception
   {
-    final F0Estimator lEstimator = new F0Estimator(xiArgs[0]);
+    int lThreads = Runtime.getRuntime().availableProcessors();
+    AnalysisProfile lProfile = AnalysisProfile.STANDARD;
+    int lChannel = WavFile.MIX_DOWN;
+    String lSpectrogram = null;
+    boolean lQuantise = false;
+    String lCacheDir = null;
+    String lFilename = null;
+    for (int lii = 0; lii < xiArgs.length; lii++)
+    {
+      if (xiArgs[lii].equals("-threads"))
+      {
+        lThreads = Integer.parseInt(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-channel"))
+      {
+        final String lValue = xiArgs[++lii];
+        lChannel = lValue.equals("mix") ? WavFile.MIX_DOWN :
+                                          Integer.parseInt(lValue);
+      }
+      else if (xiArgs[lii].equals("-save"))
+      {
+        lSpectrogram = xiArgs[++lii];
+      }
+      else if (xiArgs[lii].equals("-quantise"))
+      {
+        lQuantise = true;
+      }
+      else if (xiArgs[lii].equals("-cache"))
+      {
+        lCacheDir = xiArgs[++lii];
+      }
+      else if (AnalysisProfile.isOption(xiArgs[lii]))
+      {
+        lProfile = lProfile.withOption(xiArgs[lii], xiArgs[++lii]);
+      }
+      else
+      {
+        lFilename = xiArgs[lii];
+      }
+    }
+
+    if (lFilename == null)
+    {
+      System.err.println("Usage: F0Estimator [-threads N] [-channel mix|N] " +
+                         "[-save SPECTROGRAM] [-quantise] [-cache DIR] " +
+                         AnalysisProfile.USAGE + " FILE");
+      System.exit(1);
+    }
+
+    final F0Estimator lEstimator =
+                     new F0Estimator(lFilename, lThreads, lProfile, lChannel);
+    if (lCacheDir != null)
+    {
+      lEstimator.setStageCache(new StageCache(new File(lCacheDir)));
+    }
+    lEstimator.addSink(new AnalysisDisplay());
+    if (lSpectrogram != null)
+    {
+      lEstimator.addSink(new SpectrogramWriter(new File(lSpectrogram),
+                                               lProfile,
+                                               lEstimator.getAudioDescriptor(),
+                                               lQuantise));
+    }
     lEstimator.processFile();
   }
 
   /**
+   * Create an F0 estimator, analysing with one thread per processor and the
+   * standard profile.
    *
-   * @param xiFilename
-   * @throws WavFileException
-   * @throws IOException
+   * @param xiFilename - the file to transform.
+   * @throws WavFileException if the file is malformed.
+   * @throws IOException if the file can't be read.
    */
   public F0Estimator(String xiFilename) throws WavFileException, IOException
   {
-    mWaveFile = WavFile.openWavFile(new File(xiFilename));
-    mAudioDescriptor = new AudioDescriptor((int)mWaveFile.getSampleRate(),
-                                           (int)(mWaveFile.getSampleRate() /
-                                           AudioDescriptor.FRAME_SIZE));
+    this(xiFilename,
+         Runtime.getRuntime().availableProcessors(),
+         AnalysisProfile.STANDARD);
+  }
+
+  /**
+   * Create an F0 estimator.
+   *
+   * Small steps (of a few milliseconds or less) give finer time resolution,
+   * and are analysed with an incremental transform.  Single precision halves
+   * the memory traffic of reading, windowing and transforming frames.  It is
+   * ample for 16-bit audio, and the F0 tracks of the bundled files match
+   * those in double precision.
+   *
+   * @param xiFilename - the file to transform.
+   * @param xiThreads - the number of threads to analyse with.
+   * @param xiProfile - the analysis profile.
+   * @throws WavFileException if the file is malformed.
+   * @throws IOException if the file can't be read.
+   */
+  public F0Estimator(String xiFilename, int xiThreads, AnalysisProfile xiProfile)
+    throws WavFileException, IOException
+  {
+    this(xiFilename, xiThreads, xiProfile, WavFile.MIX_DOWN);
+  }
+
+  /**
+   * Create an F0 estimator for one channel of a file.
+   *
+   * @param xiFilename - the file to transform.
+   * @param xiThreads - the number of threads to analyse with.
+   * @param xiProfile - the analysis profile.
+   * @param xiChannel - the channel to analyse, or WavFile.MIX_DOWN to mix all
+   * channels down to mono.
+   * @throws WavFileException if the file is malformed.
+   * @throws IOException if the file can't be read.
+   */
+  public F0Estimator(String xiFilename,
+                     int xiThreads,
+                     AnalysisProfile xiProfile,
+                     int xiChannel)
+    throws WavFileException, IOException
+  {
+    mFile = new File(xiFilename);
+    mWaveFile = WavFile.openWavFile(mFile, true);
+    try
+    {
+      if ((xiChannel < WavFile.MIX_DOWN) ||
+          (xiChannel >= mWaveFile.getNumChannels()))
+      {
+        throw new IllegalArgumentException("No channel " + xiChannel + " in " +
+                                           xiFilename + " (" +
+                                           mWaveFile.getNumChannels() +
+                                           " channels)");
+      }
+      mProfile = xiProfile;
+      mChannel = xiChannel;
+      mAudioDescriptor = xiProfile.describe((int)mWaveFile.getSampleRate());
+      mStepSize = xiProfile.getStepSize(mWaveFile.getSampleRate());
+
+      mAnalyser = new ParallelAnalyser(mAudioDescriptor,
+                                       xiThreads,
+                                       mStepSize,
+                                       xiProfile.mSinglePrecision);
+    }
+    catch (final RuntimeException | Error lEx)
+    {
+      // Don't leave the file open if the estimator can't be set up, such
+      // as when the profile doesn't suit it.
+      try
+      {
+        mWaveFile.close();
+      }
+      catch (final IOException lCloseEx)
+      {
+        lEx.addSuppressed(lCloseEx);
+      }
+      throw lEx;
+    }
+  }
 
-    mTransformer = new Transformer();
-    mWhitener = new Whitener(mAudioDescriptor);
-    mWeightCalculator = new KlapuriWeightCalculator(mAudioDescriptor);
+  /**
+   * Register a receiver for the results.  Sinks must be added before the file
+   * is processed.
+   *
+   * @param xiSink - the sink.
+   */
+  public void addSink(ResultSink xiSink)
+  {
+    mSinks.add(xiSink);
+  }
 
-    mSpecWindow = new SpectogramWindow("Spectogram");
-    mBandwiseWeightWindow = new WeightWindow();
-    mGlobalWeightWindow = new SpectogramWindow("Global weights");
+  /**
+   * Use a cache of intermediate results.  When the file is processed, the
+   * analysis resumes from the deepest stage cached for the file and its
+   * analysis parameters, and the stages after it are added to the cache.
+   *
+   * @param xiCache - the cache.
+   */
+  public void setStageCache(StageCache xiCache)
+  {
+    mStageCache = xiCache;
+  }
+
+  /**
+   * @return the analysis profile.
+   */
+  public AnalysisProfile getProfile()
+  {
+    return mProfile;
+  }
+
+  /**
+   * @return the channel analysed, or WavFile.MIX_DOWN if all channels are
+   * mixed down to mono.
+   */
+  public int getChannel()
+  {
+    return mChannel;
+  }
+
+  /**
+   * @return the description of the audio being transformed.
+   */
+  public AudioDescriptor getAudioDescriptor()
+  {
+    return mAudioDescriptor;
+  }
+
+  /**
+   * @return the duration (in seconds) of the audio being transformed.
+   */
+  public double getDurationSeconds()
+  {
+    return (double)mWaveFile.getNumFrames() / mWaveFile.getSampleRate();
   }
 
   /**
@@ -140,54 +363,302 @@ public class F0Estimator
 
       // Read the wave file
       mWaveFile.display();
+      process();
+
+      final long lEndTime = System.currentTimeMillis();
+      System.out.println("Took: " + (lEndTime - lStartTime) + "ms to " +
+                         "transform " + ((mWaveFile.getNumFrames() * 1000) / mWaveFile.getSampleRate()) +
+                         "ms of audio");
+    }
+    catch (final Exception e)
+    {
+      System.err.println(e);
+    }
+  }
 
-      // !! ARR ... Check that wavFile.getNumChannels() == 1;
-      final double[] lWholeFile = new double[(int)mWaveFile.getNumFrames()];
-      mWaveFile.readFrames(lWholeFile, (int)mWaveFile.getNumFrames());
-
-      // Step through the file, looking at overlapping slices.
-      int lCount = 0;
-      final int lStepSize = (int)((mWaveFile.getSampleRate() * 10) / 1000);
-      for (int lOffset = 0;
-           (lOffset + AudioDescriptor.FRAME_SIZE) < mWaveFile.getNumFrames();
-           lOffset += lStepSize)
-      {
-        // Get a slice of the data
-        final double[] lBuffer = Arrays.copyOfRange(lWholeFile,
-                                                    lOffset,
-                                                    lOffset + AudioDescriptor.FRAME_SIZE);
-
-        // Perform a Hamming-windowed FFT.
-        final Complex[] lFreq = mTransformer.transform(lBuffer);
-
-        // Whiten the data and add to the UI.
-        final double[] lWhitened = mWhitener.whiten(lFreq);
-        mSpecWindow.addSamples(lWhitened);
-
-        // Calculate the weights.
-        final double[][] lBandwiseWeights =
-                      mWeightCalculator.calculateBandwiseWeights(lWhitened);
-        if (++lCount == 100)
+  /**
+   * Process the audio file, publishing the results to the registered sinks.
+   * The file (and the sinks) are closed, and the analysis threads released,
+   * when done.
+   *
+   * @throws IOException if the file can't be read or a sink fails.
+   * @throws WavFileException if the file is malformed.
+   */
+  public void process() throws IOException, WavFileException
+  {
+    try
+    {
+      if (mStageCache == null)
+      {
+        analyseFile(new StageCache.Writer[0]);
+      }
+      else
+      {
+        processCached();
+      }
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  /**
+   * Step through the file, looking at overlapping slices, and publish the
+   * results.  The file is streamed a batch of slices at a time and each batch
+   * is analysed in parallel, so memory use doesn't depend on the length of
+   * the file.
+   */
+  private void analyseFile(StageCache.Writer[] xiWriters)
+    throws IOException, WavFileException
+  {
+    final FrameReader lReader = new FrameReader(mWaveFile,
+                                                mChannel,
+                                                mAudioDescriptor.mFrameSize,
+                                                mStepSize);
+    int lNumFrames;
+    while ((lNumFrames = mAnalyser.analyseBatch(lReader)) > 0)
+    {
+      // Publish the results, in time order.
+      for (int lii = 0; lii < lNumFrames; lii++)
+      {
+        publish(mAnalyser.getResult(lii), xiWriters);
+      }
+    }
+  }
+
+  /**
+   * Process the file, resuming from the deepest stage in the cache and
+   * caching the stages after it.
+   */
+  private void processCached() throws IOException, WavFileException
+  {
+    final String lHash = StageCache.hashContent(mFile);
+    final Stage[] lStages = Stage.values();
+    final String[] lKeys = new String[lStages.length];
+    for (final Stage lStage : lStages)
+    {
+      lKeys[lStage.ordinal()] = StageCache.key(lHash,
+                                               lStage,
+                                               mAudioDescriptor,
+                                               mStepSize,
+                                               mChannel,
+                                               mProfile.mSinglePrecision);
+    }
+
+    // Find the deepest stage cached.  Resuming from the bandwise weights also
+    // needs the whitened spectrum.
+    Stage lResumeFrom = null;
+    StageCache.Reader lReader = null;
+    StageCache.Reader lWhitenedReader = null;
+    for (int lii = lStages.length - 1; (lii >= 0) && (lResumeFrom == null); lii--)
+    {
+      lReader = mStageCache.open(lKeys[lii], lStages[lii]);
+      if ((lReader != null) && (lStages[lii] == Stage.BANDWISE))
+      {
+        lWhitenedReader = mStageCache.open(lKeys[Stage.WHITENED.ordinal()],
+                                           Stage.WHITENED);
+        if (lWhitenedReader == null)
         {
-          mBandwiseWeightWindow.addWeights(lBandwiseWeights);
+          lReader.close();
+          lReader = null;
         }
+      }
+      if (lReader != null)
+      {
+        lResumeFrom = lStages[lii];
+      }
+    }
 
-        final double[] lGlobalWeights =
-                  mWeightCalculator.calculateGlobalWeights(lBandwiseWeights);
-        mGlobalWeightWindow.addSamples(lGlobalWeights);
+    // Cache the stages after it.
+    final int lFirstMissing = (lResumeFrom == null) ? 0 : lResumeFrom.ordinal() + 1;
+    final StageCache.Writer[] lWriters =
+                         new StageCache.Writer[lStages.length - lFirstMissing];
+    final long lNumFrames = (mWaveFile.getNumFrames() / mStepSize) + 1;
+    try
+    {
+      for (int lii = 0; lii < lWriters.length; lii++)
+      {
+        final Stage lStage = lStages[lFirstMissing + lii];
+        lWriters[lii] = mStageCache.create(lKeys[lStage.ordinal()],
+                                           lStage,
+                                           mAudioDescriptor,
+                                           lNumFrames);
       }
 
-      // Close the wavFile
+      if (lResumeFrom == null)
+      {
+        mAnalyser.keepMagnitudes();
+        analyseFile(lWriters);
+      }
+      else
+      {
+        resume(lResumeFrom, lReader, lWhitenedReader, lWriters);
+      }
+
+      for (int lii = 0; lii < lWriters.length; lii++)
+      {
+        lWriters[lii].commit();
+        lWriters[lii] = null;
+      }
+    }
+    finally
+    {
+      for (final StageCache.Writer lWriter : lWriters)
+      {
+        if (lWriter != null)
+        {
+          lWriter.abort();
+        }
+      }
+      if (lReader != null)
+      {
+        lReader.close();
+      }
+      if (lWhitenedReader != null)
+      {
+        lWhitenedReader.close();
+      }
+    }
+  }
+
+  /**
+   * Complete the analysis of each frame from the cached output of a stage.
+   * As when analysing the file, frames are read a batch at a time and each
+   * batch is analysed in parallel.
+   */
+  private void resume(Stage xiStage,
+                      StageCache.Reader xiReader,
+                      StageCache.Reader xiWhitenedReader,
+                      StageCache.Writer[] xiWriters)
+    throws IOException
+  {
+    int lNumFrames;
+    while ((lNumFrames = mAnalyser.resumeBatch(xiStage,
+                                               xiReader,
+                                               xiWhitenedReader)) > 0)
+    {
+      // Publish the results, in time order.
+      for (int lii = 0; lii < lNumFrames; lii++)
+      {
+        publish(mAnalyser.getResult(lii), xiWriters);
+      }
+    }
+  }
+
+  /**
+   * Record the analysis of a frame in the cache and publish it to the sinks.
+   */
+  private void publish(FrameAnalysis xiResult, StageCache.Writer[] xiWriters)
+    throws IOException
+  {
+    for (final StageCache.Writer lWriter : xiWriters)
+    {
+      lWriter.addFrame(xiResult);
+    }
+    for (final ResultSink lSink : mSinks)
+    {
+      lSink.addFrame(xiResult);
+    }
+  }
+
+  /**
+   * Analyse a region of the file, such as one selected for closer inspection,
+   * publishing the results to the given sink.  Only the region is read, with
+   * random-access reads (see {@link FrameReader}), so this takes time in
+   * proportion to the length of the region rather than of the file.
+   *
+   * The frames analysed are those of the whole-file analysis that start
+   * within the region.  Regions may be analysed any number of times before
+   * the file is processed, or instead of processing it; either way the
+   * estimator must be closed when done with.  The sink is not closed.
+   *
+   * @param xiStartSeconds - the start of the region (in seconds).
+   * @param xiEndSeconds - the end of the region (in seconds).
+   * @param xiSink - the receiver for the results.
+   * @throws IOException if the file can't be read or the sink fails.
+   * @throws WavFileException if the file is malformed.
+   */
+  public void processRegion(double xiStartSeconds,
+                            double xiEndSeconds,
+                            ResultSink xiSink)
+    throws IOException, WavFileException
+  {
+    final double lSampleRate = mWaveFile.getSampleRate();
+
+    // Start at the first frame boundary within the region.
+    final long lStart = (long)Math.ceil(Math.max(0, xiStartSeconds) *
+                                        lSampleRate / mStepSize) * mStepSize;
+    final long lEnd = Math.min(mWaveFile.getNumFrames(),
+                               (long)(xiEndSeconds * lSampleRate));
+    if (lEnd <= lStart)
+    {
+      return;
+    }
+
+    final FrameReader lReader = new FrameReader(mWaveFile,
+                                                mChannel,
+                                                lStart,
+                                                (lEnd - lStart) +
+                                                  mAudioDescriptor.mFrameSize,
+                                                mAudioDescriptor.mFrameSize,
+                                                mStepSize);
+    int lNumFrames;
+    while ((lNumFrames = mAnalyser.analyseBatch(lReader)) > 0)
+    {
+      for (int lii = 0; lii < lNumFrames; lii++)
+      {
+        xiSink.addFrame(mAnalyser.getResult(lii));
+      }
+    }
+  }
+
+  /**
+   * Close the audio file and the sinks and release the analysis threads.
+   * This is done automatically once the file has been processed.
+   *
+   * @throws IOException if the file can't be closed.
+   */
+  public void close() throws IOException
+  {
+    // Attempt every close, even if an earlier one fails, so that no sink is
+    // left unfinished, and report the first failure.
+    Exception lFailure = null;
+    try
+    {
+      mAnalyser.close();
+    }
+    catch (final RuntimeException lEx)
+    {
+      lFailure = lEx;
+    }
+    try
+    {
       mWaveFile.close();
+    }
+    catch (final IOException | RuntimeException lEx)
+    {
+      lFailure = (lFailure == null) ? lEx : lFailure;
+    }
+    for (final ResultSink lSink : mSinks)
+    {
+      try
+      {
+        lSink.close();
+      }
+      catch (final IOException | RuntimeException lEx)
+      {
+        lFailure = (lFailure == null) ? lEx : lFailure;
+      }
+    }
 
-      final long lEndTime = System.currentTimeMillis();
-      System.out.println("Took: " + (lEndTime - lStartTime) + "ms to " +
-                         "transform " + ((mWaveFile.getNumFrames() * 1000) / mWaveFile.getSampleRate()) +
-                         "ms of audio");
+    if (lFailure instanceof IOException)
+    {
+      throw (IOException)lFailure;
     }
-    catch (final Exception e)
+    else if (lFailure != null)
     {
-      System.err.println(e);
+      throw (RuntimeException)lFailure;
     }
   }
 }
@@ -0,0 +1,88 @@
+package core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Writes an F0 track - the strongest F0 candidate in each frame - as text.
+ *
+ * Each line holds the time (in seconds) of the start of the frame, the F0 (in
+ * Hz, or 0 if there is no candidate) and its global weight, separated by tabs.
+ * Lines are written as each frame is added, so nothing is accumulated in
+ * memory.
+ */
+public class F0TrackWriter implements ResultSink
+{
+  private final Writer mWriter;
+  private final AudioDescriptor mDescriptor;
+
+  // Whether to flush the writer after each frame.
+  private final boolean mFlushEachFrame;
+
+  /**
+   * Create an F0 track writer.
+   *
+   * @param xiFile - the file to write.
+   * @param xiDescriptor - description of the audio data.
+   * @throws IOException if the file can't be created.
+   */
+  public F0TrackWriter(File xiFile, AudioDescriptor xiDescriptor)
+    throws IOException
+  {
+    mWriter = new BufferedWriter(new FileWriter(xiFile));
+    mDescriptor = xiDescriptor;
+    mFlushEachFrame = false;
+  }
+
+  /**
+   * Create an F0 track writer that writes to an existing writer, flushing
+   * after each frame so that the track can be followed as it is produced.
+   *
+   * @param xiWriter - the writer.  It is closed when the track is closed.
+   * @param xiDescriptor - description of the audio data.
+   */
+  public F0TrackWriter(Writer xiWriter, AudioDescriptor xiDescriptor)
+  {
+    mWriter = xiWriter;
+    mDescriptor = xiDescriptor;
+    mFlushEachFrame = true;
+  }
+
+  @Override
+  public void addFrame(FrameAnalysis xiFrame) throws IOException
+  {
+    final double[] lGlobalWeights = xiFrame.mGlobalWeights;
+    int lMaxIndex = 0;
+    for (int lii = 1; lii < lGlobalWeights.length; lii++)
+    {
+      if (lGlobalWeights[lii] > lGlobalWeights[lMaxIndex])
+      {
+        lMaxIndex = lii;
+      }
+    }
+
+    final double lF0 = (lGlobalWeights[lMaxIndex] > 0) ?
+                                   lMaxIndex * mDescriptor.mBucketSizeHz : 0;
+    mWriter.write(String.format(Locale.ROOT,
+                                "%.3f\t%.1f\t%.6f%n",
+                                (double)xiFrame.mOffset / mDescriptor.mSampleRate,
+                                lF0,
+                                lGlobalWeights[lMaxIndex]));
+    if (mFlushEachFrame)
+    {
+      mWriter.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mWriter.close();
+  }
+}
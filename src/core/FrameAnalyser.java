@@ -0,0 +1,279 @@
+package core;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Analyses single frames: transforms, whitens and weights them.
+ *
+ * Frames are transformed with a full FFT, unless the analyser is created for
+ * consecutive frames at a step small enough that a {@link SlidingDFT} is
+ * cheaper.  In that case only the bins read by the whitener and the weight
+ * calculator are computed, and the rest of the magnitude spectrum is left at
+ * zero.
+ *
+ * Frames may be analysed in single precision, in which case they are
+ * windowed, transformed and converted to magnitudes as floats.  (The sliding
+ * transform's recurrence needs double precision, so single-precision frames
+ * are widened for it.)  Whitening and weighting, which work on a fraction of
+ * the bins and are dominated by transcendental functions, are always done in
+ * double precision.
+ *
+ * An analyser holds a transformer and scratch space so may only be used by
+ * one thread at a time.  The whitener and weight calculator are not modified
+ * by analysis so may be shared between analysers.
+ */
+public class FrameAnalyser
+{
+  /**
+   * The number of frames a sliding analyser may update incrementally before
+   * recomputing the spectrum in full.
+   */
+  public static final int RESYNC_INTERVAL = 16;
+
+  private final Transformer mTransformer;
+  private final SlidingDFT mSlidingDFT;
+  private final double[] mMagnitudes;
+  private double[] mWidened;
+  private final Whitener mWhitener;
+  private final KlapuriWeightCalculator mWeightCalculator;
+  private final PolyphonicEstimator mPolyphonicEstimator;
+
+  /**
+   * Create a frame analyser for arbitrary frames.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiWhitener - the whitener.
+   * @param xiWeightCalculator - the weight calculator.
+   */
+  public FrameAnalyser(AudioDescriptor xiDescriptor,
+                       Whitener xiWhitener,
+                       KlapuriWeightCalculator xiWeightCalculator)
+  {
+    mTransformer = new Transformer(xiDescriptor.mFrameSize);
+    mSlidingDFT = null;
+    mMagnitudes = new double[xiDescriptor.mNumBins];
+    mWhitener = xiWhitener;
+    mWeightCalculator = xiWeightCalculator;
+    mPolyphonicEstimator = new PolyphonicEstimator(xiDescriptor,
+                                                   xiWeightCalculator);
+  }
+
+  /**
+   * Create a frame analyser for consecutive frames a fixed step apart.  Call
+   * {@link #reset()} before analysing a frame that doesn't follow on from the
+   * previous one.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiWhitener - the whitener.
+   * @param xiWeightCalculator - the weight calculator.
+   * @param xiStepSize - the step between successive frames (in samples).
+   */
+  public FrameAnalyser(AudioDescriptor xiDescriptor,
+                       Whitener xiWhitener,
+                       KlapuriWeightCalculator xiWeightCalculator,
+                       int xiStepSize)
+  {
+    mWhitener = xiWhitener;
+    mWeightCalculator = xiWeightCalculator;
+    mMagnitudes = new double[xiDescriptor.mNumBins];
+    mPolyphonicEstimator = new PolyphonicEstimator(xiDescriptor,
+                                                   xiWeightCalculator);
+
+    if (isSliding(xiDescriptor, xiWhitener, xiWeightCalculator, xiStepSize))
+    {
+      mTransformer = null;
+      mSlidingDFT = new SlidingDFT(xiDescriptor.mFrameSize,
+                                   xiStepSize,
+                                   xiDescriptor.mMinFreqIndex,
+                                   endBin(xiDescriptor,
+                                          xiWhitener,
+                                          xiWeightCalculator),
+                                   RESYNC_INTERVAL);
+    }
+    else
+    {
+      mTransformer = new Transformer(xiDescriptor.mFrameSize);
+      mSlidingDFT = null;
+    }
+  }
+
+  /**
+   * Determine whether an analyser for consecutive frames will transform them
+   * incrementally.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiWhitener - the whitener.
+   * @param xiWeightCalculator - the weight calculator.
+   * @param xiStepSize - the step between successive frames (in samples).
+   *
+   * @return whether frames will be transformed with a {@link SlidingDFT}.
+   */
+  public static boolean isSliding(AudioDescriptor xiDescriptor,
+                                  Whitener xiWhitener,
+                                  KlapuriWeightCalculator xiWeightCalculator,
+                                  int xiStepSize)
+  {
+    return (xiStepSize < xiDescriptor.mFrameSize) &&
+           SlidingDFT.isCheaperThanFFT(xiDescriptor.mFrameSize,
+                                       xiStepSize,
+                                       endBin(xiDescriptor,
+                                              xiWhitener,
+                                              xiWeightCalculator) -
+                                                   xiDescriptor.mMinFreqIndex);
+  }
+
+  /**
+   * @param xiDescriptor - description of the audio data.
+   * @param xiWhitener - the whitener.
+   * @param xiWeightCalculator - the weight calculator.
+   *
+   * @return one past the highest bin of the magnitude spectrum that affects
+   * the weights.
+   */
+  public static int endBin(AudioDescriptor xiDescriptor,
+                            Whitener xiWhitener,
+                            KlapuriWeightCalculator xiWeightCalculator)
+  {
+    return Math.min(xiDescriptor.mNumBins,
+                    Math.max(xiWhitener.getEndBin(),
+                             xiWeightCalculator.getEndBin()));
+  }
+
+  /**
+   * Forget the previous frame, so that the next is transformed in full.
+   */
+  public void reset()
+  {
+    if (mSlidingDFT != null)
+    {
+      mSlidingDFT.reset();
+    }
+  }
+
+  /**
+   * Analyse a frame.
+   *
+   * @param xiFrame - the samples of the frame.  These may be modified.
+   * @param xoResult - the analysis.  The offset is left unchanged.
+   */
+  public void analyse(double[] xiFrame, FrameAnalysis xoResult)
+  {
+    // Perform a Hamming-windowed FFT.
+    if (mSlidingDFT != null)
+    {
+      mSlidingDFT.transformMagnitudes(xiFrame, mMagnitudes);
+    }
+    else
+    {
+      mTransformer.transformMagnitudes(xiFrame, mMagnitudes);
+    }
+
+    analyseSpectrum(xoResult);
+  }
+
+  /**
+   * Analyse a frame held in single precision.
+   *
+   * @param xiFrame - the samples of the frame.  These may be modified.
+   * @param xoResult - the analysis.  The offset is left unchanged.
+   */
+  public void analyse(float[] xiFrame, FrameAnalysis xoResult)
+  {
+    if (mSlidingDFT != null)
+    {
+      if (mWidened == null)
+      {
+        mWidened = new double[xiFrame.length];
+      }
+      for (int lii = 0; lii < mWidened.length; lii++)
+      {
+        mWidened[lii] = xiFrame[lii];
+      }
+      mSlidingDFT.transformMagnitudes(mWidened, mMagnitudes);
+    }
+    else
+    {
+      mTransformer.transformMagnitudes(xiFrame, mMagnitudes);
+    }
+
+    analyseSpectrum(xoResult);
+  }
+
+  /**
+   * Analyse a frame from its magnitude spectrum, such as one saved from an
+   * earlier analysis (see {@link StageCache}).
+   *
+   * @param xiMagnitudes - the magnitude spectrum.
+   * @param xoResult - the analysis.  The offset is left unchanged.
+   */
+  public void analyseMagnitudes(double[] xiMagnitudes, FrameAnalysis xoResult)
+  {
+    final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+    mWhitener.whiten(xiMagnitudes, xoResult.mWhitened);
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.WHITEN.record(System.nanoTime() - lStart);
+    }
+
+    analyseWhitened(xoResult);
+  }
+
+  /**
+   * Complete the analysis of a frame whose whitened spectrum is known.
+   *
+   * @param xoResult - the analysis, with the whitened spectrum filled in.
+   */
+  public void analyseWhitened(FrameAnalysis xoResult)
+  {
+    final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+    xoResult.mBandwiseWeights =
+                mWeightCalculator.calculateBandwiseWeights(xoResult.mWhitened);
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.BANDWISE_WEIGHTS.record(System.nanoTime() - lStart);
+    }
+
+    analyseBandwise(xoResult);
+  }
+
+  /**
+   * Complete the analysis of a frame whose whitened spectrum and bandwise
+   * weights are known: calculate the global weights and detect the F0s.
+   *
+   * @param xoResult - the analysis, with the whitened spectrum and bandwise
+   * weights filled in.
+   */
+  public void analyseBandwise(FrameAnalysis xoResult)
+  {
+    final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+    xoResult.mGlobalWeights =
+          mWeightCalculator.calculateGlobalWeights(xoResult.mBandwiseWeights);
+    final long lGlobal = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
+    // Detect the F0s.
+    xoResult.mNumF0s = mPolyphonicEstimator.estimate(xoResult.mWhitened,
+                                                     xoResult.mBandwiseWeights,
+                                                     xoResult.mGlobalWeights,
+                                                     xoResult.mF0Indices,
+                                                     xoResult.mF0Weights);
+
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.GLOBAL_WEIGHTS.record(lGlobal - lStart);
+      PipelineMetrics.POLYPHONY.record(System.nanoTime() - lGlobal);
+    }
+  }
+
+  /**
+   * Analyse the magnitude spectrum of the frame just transformed, keeping a
+   * copy of it if the result has room for one.
+   */
+  private void analyseSpectrum(FrameAnalysis xoResult)
+  {
+    if (xoResult.mMagnitudes != null)
+    {
+      System.arraycopy(mMagnitudes, 0, xoResult.mMagnitudes, 0, mMagnitudes.length);
+    }
+    analyseMagnitudes(mMagnitudes, xoResult);
+  }
+}
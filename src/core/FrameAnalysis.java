@@ -0,0 +1,64 @@
+package core;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * The analysis of a single frame.
+ */
+public class FrameAnalysis
+{
+  /**
+   * Offset (in samples) of the start of the frame.
+   */
+  public long mOffset;
+
+  /**
+   * The magnitude spectrum, if it is kept (see
+   * {@link ParallelAnalyser#keepMagnitudes()}), or null.
+   */
+  public double[] mMagnitudes;
+
+  /**
+   * The whitened spectrum.
+   */
+  public final double[] mWhitened;
+
+  /**
+   * The Klapuri weights across all bands.
+   */
+  public double[][] mBandwiseWeights;
+
+  /**
+   * The global Klapuri weights.
+   */
+  public double[] mGlobalWeights;
+
+  /**
+   * The bins of the F0s detected (see {@link PolyphonicEstimator}), in the
+   * order detected.  Only the first mNumF0s are valid.
+   */
+  public final int[] mF0Indices;
+
+  /**
+   * The global weight of each F0 detected, in the spectrum from which it was
+   * detected.
+   */
+  public final double[] mF0Weights;
+
+  /**
+   * The number of F0s detected.
+   */
+  public int mNumF0s;
+
+  /**
+   * Create an analysis, to be filled in.
+   *
+   * @param xiDescriptor - description of the audio data.
+   */
+  public FrameAnalysis(AudioDescriptor xiDescriptor)
+  {
+    mWhitened = new double[xiDescriptor.mNumBins];
+    mF0Indices = new int[PolyphonicEstimator.MAX_POLYPHONY];
+    mF0Weights = new double[PolyphonicEstimator.MAX_POLYPHONY];
+  }
+}
@@ -0,0 +1,291 @@
+package core;
+
+import java.io.IOException;
+
+import core.WavFile.WavFileException;
+
+/**
+ * Reads successive, overlapping frames from a wave file (or any other source
+ * of samples).
+ *
+ * Samples are streamed from the source into a ring buffer holding one frame
+ * plus one step, so memory use is independent of the length of the source.
+ * Frames may be read in double or single precision, but a reader must be used
+ * with one or the other throughout.
+ */
+public class FrameReader
+{
+  private final SampleSource mSource;
+
+  // Number of samples in the source (Long.MAX_VALUE if unknown).
+  private final long mNumSamples;
+
+  // Offset (in samples) of the start of the source within the audio.
+  private final long mStartOffset;
+
+  private final int mFrameSize;
+  private final int mStepSize;
+  private final int mRingSize;
+
+  // The ring buffer: a double[] or float[], allocated on the first read.
+  private Object mRing;
+
+  // Total number of samples read from the source so far.
+  private long mSamplesRead;
+
+  // Offset (in samples) of the next frame to be returned.
+  private long mNextOffset;
+
+  // Offset (in samples) of the frame most recently returned.
+  private long mFrameOffset = -1;
+
+  /**
+   * Create a frame reader.  A file with more than one channel is mixed down to
+   * mono.
+   *
+   * @param xiWavFile - the wave file, open for reading.
+   * @param xiFrameSize - the frame size (in samples).
+   * @param xiStepSize - the step between the start of successive frames (in
+   * samples).
+   */
+  public FrameReader(WavFile xiWavFile, int xiFrameSize, int xiStepSize)
+  {
+    this(xiWavFile, WavFile.MIX_DOWN, xiFrameSize, xiStepSize);
+  }
+
+  /**
+   * Create a frame reader for one channel of a file, or for all its channels
+   * mixed down to mono.  The channels are mixed (or selected) as the samples
+   * are decoded.
+   *
+   * @param xiWavFile - the wave file, open for reading.
+   * @param xiChannel - the channel to read, or WavFile.MIX_DOWN.
+   * @param xiFrameSize - the frame size (in samples).
+   * @param xiStepSize - the step between the start of successive frames (in
+   * samples).
+   */
+  public FrameReader(final WavFile xiWavFile,
+                     final int xiChannel,
+                     int xiFrameSize,
+                     int xiStepSize)
+  {
+    this(new SampleSource()
+         {
+           @Override
+           public int read(double[] xoBuffer, int xiOffset, int xiLength)
+             throws IOException, WavFileException
+           {
+             return xiWavFile.readMonoFrames(xoBuffer, xiOffset, xiLength, xiChannel);
+           }
+
+           @Override
+           public int read(float[] xoBuffer, int xiOffset, int xiLength)
+             throws IOException, WavFileException
+           {
+             return xiWavFile.readMonoFrames(xoBuffer, xiOffset, xiLength, xiChannel);
+           }
+         },
+         0,
+         xiWavFile.getNumFrames(),
+         xiFrameSize,
+         xiStepSize);
+  }
+
+  /**
+   * Create a frame reader for a region of a file, such as one being
+   * re-analysed.  The region is read with random-access reads, so neither
+   * the file's position nor any other reader of it is affected, and only the
+   * region is decoded.  Frame offsets are relative to the start of the file.
+   *
+   * @param xiWavFile - the wave file, open for reading.
+   * @param xiChannel - the channel to read, or WavFile.MIX_DOWN.
+   * @param xiStartFrame - the first sample of the region.
+   * @param xiNumFrames - the number of samples in the region.  Frames are
+   * returned for as long as they lie wholly within it.
+   * @param xiFrameSize - the frame size (in samples).
+   * @param xiStepSize - the step between the start of successive frames (in
+   * samples).
+   */
+  public FrameReader(final WavFile xiWavFile,
+                     final int xiChannel,
+                     final long xiStartFrame,
+                     long xiNumFrames,
+                     int xiFrameSize,
+                     int xiStepSize)
+  {
+    this(new SampleSource()
+         {
+           // The next sample of the file to read.
+           private long mPosition = xiStartFrame;
+
+           @Override
+           public int read(double[] xoBuffer, int xiOffset, int xiLength)
+             throws IOException
+           {
+             final int lRead = xiWavFile.readMonoFrames(mPosition,
+                                                        xoBuffer,
+                                                        xiOffset,
+                                                        xiLength,
+                                                        xiChannel);
+             mPosition += lRead;
+             return lRead;
+           }
+
+           @Override
+           public int read(float[] xoBuffer, int xiOffset, int xiLength)
+             throws IOException
+           {
+             final int lRead = xiWavFile.readMonoFrames(mPosition,
+                                                        xoBuffer,
+                                                        xiOffset,
+                                                        xiLength,
+                                                        xiChannel);
+             mPosition += lRead;
+             return lRead;
+           }
+         },
+         xiStartFrame,
+         Math.min(xiNumFrames, xiWavFile.getNumFrames() - xiStartFrame),
+         xiFrameSize,
+         xiStepSize);
+  }
+
+  /**
+   * Create a frame reader over a source of unknown length, such as a live
+   * input.  Frames are returned for as long as the source supplies samples.
+   *
+   * @param xiSource - the source of samples.
+   * @param xiFrameSize - the frame size (in samples).
+   * @param xiStepSize - the step between the start of successive frames (in
+   * samples).
+   */
+  public FrameReader(SampleSource xiSource, int xiFrameSize, int xiStepSize)
+  {
+    this(xiSource, 0, Long.MAX_VALUE, xiFrameSize, xiStepSize);
+  }
+
+  private FrameReader(SampleSource xiSource,
+                      long xiStartOffset,
+                      long xiNumSamples,
+                      int xiFrameSize,
+                      int xiStepSize)
+  {
+    mSource = xiSource;
+    mStartOffset = xiStartOffset;
+    mNumSamples = xiNumSamples;
+    mFrameSize = xiFrameSize;
+    mStepSize = xiStepSize;
+    mRingSize = xiFrameSize + xiStepSize;
+  }
+
+  /**
+   * Read the next frame.
+   *
+   * @param xoFrame - buffer (of at least the frame size) to receive the frame.
+   *
+   * @return whether a frame was read.  Returns false once there is no further
+   * complete frame in the source.  Blocks, for a live source, until the frame
+   * is available.
+   *
+   * @throws IOException if the source can't be read.
+   * @throws WavFileException if the source is malformed.
+   */
+  public boolean nextFrame(double[] xoFrame) throws IOException, WavFileException
+  {
+    if (mRing == null)
+    {
+      mRing = new double[mRingSize];
+    }
+    else if (!(mRing instanceof double[]))
+    {
+      throw new IllegalStateException("Frames are being read as float[]");
+    }
+    return readFrame(xoFrame);
+  }
+
+  /**
+   * Read the next frame in single precision.
+   *
+   * @param xoFrame - buffer (of at least the frame size) to receive the frame.
+   *
+   * @return whether a frame was read.  See {@link #nextFrame(double[])}.
+   *
+   * @throws IOException if the source can't be read.
+   * @throws WavFileException if the source is malformed.
+   */
+  public boolean nextFrame(float[] xoFrame) throws IOException, WavFileException
+  {
+    if (mRing == null)
+    {
+      mRing = new float[mRingSize];
+    }
+    else if (!(mRing instanceof float[]))
+    {
+      throw new IllegalStateException("Frames are being read as double[]");
+    }
+    return readFrame(xoFrame);
+  }
+
+  /**
+   * Read the next frame into an array of the same type as the ring.
+   */
+  private boolean readFrame(Object xoFrame) throws IOException, WavFileException
+  {
+    if ((mNextOffset + mFrameSize) >= mNumSamples)
+    {
+      return false;
+    }
+
+    final long lStartTime = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
+    // Top up the ring buffer so that it holds the whole of the next frame.
+    final long lTarget = mNextOffset + mFrameSize;
+    while (mSamplesRead < lTarget)
+    {
+      final int lPosition = (int)(mSamplesRead % mRingSize);
+      final int lWanted = (int)Math.min(mRingSize - lPosition,
+                                        lTarget - mSamplesRead);
+      final int lRead = (mRing instanceof double[]) ?
+                        mSource.read((double[])mRing, lPosition, lWanted) :
+                        mSource.read((float[])mRing, lPosition, lWanted);
+      if (lRead <= 0)
+      {
+        return false;
+      }
+      mSamplesRead += lRead;
+    }
+
+    // Copy the frame out of the ring, unwrapping as necessary.
+    final int lStart = (int)(mNextOffset % mRingSize);
+    final int lFirstPart = Math.min(mFrameSize, mRingSize - lStart);
+    System.arraycopy(mRing, lStart, xoFrame, 0, lFirstPart);
+    System.arraycopy(mRing, 0, xoFrame, lFirstPart, mFrameSize - lFirstPart);
+
+    mFrameOffset = mNextOffset;
+    mNextOffset += mStepSize;
+
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.READ.record(System.nanoTime() - lStartTime);
+    }
+    return true;
+  }
+
+  /**
+   * @return the step between the start of successive frames (in samples).
+   */
+  public int getStepSize()
+  {
+    return mStepSize;
+  }
+
+  /**
+   * @return the offset (in samples, from the start of the audio) of the frame
+   * most recently returned by {@link #nextFrame(double[])} or
+   * {@link #nextFrame(float[])}, or -1 if no frame has been read.
+   */
+  public long getFrameOffset()
+  {
+    return (mFrameOffset < 0) ? -1 : mStartOffset + mFrameOffset;
+  }
+}
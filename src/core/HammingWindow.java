@@ -6,6 +6,7 @@ package core;
 public class HammingWindow
 {
   private final double[] mCoefficients;
+  private final float[] mFloatCoefficients;
 
   /**
    * Create a Hamming window of the specified size.
@@ -20,6 +21,12 @@ public class HammingWindow
       mCoefficients[lii] =
                     0.54 - (0.46 * Math.cos((2 * Math.PI * lii) / (xiSize - 1)));
     }
+
+    mFloatCoefficients = new float[xiSize];
+    for (int lii = 0; lii < mCoefficients.length; lii++)
+    {
+      mFloatCoefficients[lii] = (float)mCoefficients[lii];
+    }
   }
 
   /**
@@ -37,4 +44,20 @@ public class HammingWindow
       xiData[lii] *= mCoefficients[lii];
     }
   }
+
+  /**
+   * Apply the window to the specified single-precision data.
+   *
+   * Note that the data length must equal the window size used when
+   * constructing this window.
+   *
+   * @param xiData - the data.
+   */
+  public void apply(float[] xiData)
+  {
+    for (int lii = 0; lii < mFloatCoefficients.length; lii++)
+    {
+      xiData[lii] *= mFloatCoefficients[lii];
+    }
+  }
 }
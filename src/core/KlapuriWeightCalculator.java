@@ -9,6 +9,10 @@ import core.F0Estimator.AudioDescriptor;
 
 /**
  * Calculate banded weights according to Klapuri2005.
+ *
+ * The band tables are calculated once, on construction, and calculating
+ * weights doesn't modify them, so a single calculator may be shared between
+ * threads (see {@link TableCache}).
  */
 public class KlapuriWeightCalculator
 {
@@ -18,28 +22,124 @@ public class KlapuriWeightCalculator
     public final int mMinIndex;
     public final int mMaxIndex;
     public final int mNumBuckets;
+
+    // The triangular window over the band.  Only the in-band coefficients are
+    // held, so coefficient i applies to bin mMinIndex + i.
     public final double[] mWindowCoefficients;
 
+    // Candidate F0s (from mMinFreqIndex upwards) with more than one harmonic in
+    // the band.  For candidate c, harmonics are sought at offsets (from
+    // mMinIndex) of mMinOffset[c] to mMaxOffset[c].  Offsets up to
+    // mSplitOffset[c] have one more partial in the band than those beyond, so
+    // the sums are scaled by mScaleBelowSplit[c] and mScaleAboveSplit[c]
+    // respectively.
+    public final int mNumCandidates;
+    public final int[] mMinOffset;
+    public final int[] mMaxOffset;
+    public final int[] mSplitOffset;
+    public final double[] mScaleBelowSplit;
+    public final double[] mScaleAboveSplit;
+
+    // Candidate F0s with a single harmonic in the band.  For range r, bins
+    // mSingleStart[r] to mSingleEnd[r] (inclusive) are taken to be harmonic
+    // number mSingleHarmonic[r].
+    public final int[] mSingleStart;
+    public final int[] mSingleEnd;
+    public final int[] mSingleHarmonic;
+
     public Band(int xiLowIndex)
     {
       mMinIndex = xiLowIndex;
       final double lMinFreq = mMinIndex * mDescriptor.mBucketSizeHz;
       final double lMaxFreq = Math.max(lMinFreq + 100,
                                  lMinFreq * Math.pow(2, 2.0 / 3.0));
-      mMaxIndex = (int)Math.ceil(lMaxFreq / mDescriptor.mBucketSizeHz);
+      mMaxIndex = Math.min((int)Math.ceil(lMaxFreq / mDescriptor.mBucketSizeHz),
+                           mDescriptor.mNumBins - 1);
       mNumBuckets = (mMaxIndex + 1) - mMinIndex;
-      mWindowCoefficients = new double[AudioDescriptor.FRAME_SIZE];
+      mWindowCoefficients = new double[mNumBuckets];
 
       final double lCentreIndex = (mMinIndex + mMaxIndex) / 2.0;
-      for (int lii = 0; lii < AudioDescriptor.FRAME_SIZE; lii++)
+      for (int lii = mMinIndex; lii <= mMaxIndex; lii++)
+      {
+        mWindowCoefficients[lii - mMinIndex] = 1.0 - ((Math.abs(lCentreIndex - lii) * 2.0) / mNumBuckets);
+      }
+
+      // Calculate the range of offsets at which to look for each frequency
+      // that has more than 1 harmonic in the band.  This allows for
+      // inharmonicites as per (5) in [Klapuri2005].
+      mNumCandidates = Math.max(0, mNumBuckets - mDescriptor.mMinFreqIndex);
+      mMinOffset = new int[mNumCandidates];
+      mMaxOffset = new int[mNumCandidates];
+      mSplitOffset = new int[mNumCandidates];
+      mScaleBelowSplit = new double[mNumCandidates];
+      mScaleAboveSplit = new double[mNumCandidates];
+      for (int lCandidate = 0; lCandidate < mNumCandidates; lCandidate++)
+      {
+        final int lIndex = mDescriptor.mMinFreqIndex + lCandidate;
+        int lMinOffset = (int)Math.round(Math.ceil((double)mMinIndex / (double)lIndex) * lIndex) - mMinIndex;
+        final int h = mMaxIndex / lIndex;
+        final double lDelta = mMaxIndex * (Math.sqrt(1.0 + (0.01 * (Math.pow(h, 2.0) - 1.0))) - 1.0);
+        int lMaxOffset = (int)(lMinOffset + lDelta);
+        if (lMaxOffset > ((lMinOffset + lIndex) - 1))
+        {
+          // The spread of positions in which we expect to find the frequency
+          // is greater than the frequency itself.  Search everywhere.
+          lMinOffset = 0;
+          lMaxOffset = lIndex - 1;
+        }
+        mMinOffset[lCandidate] = lMinOffset;
+        mMaxOffset[lCandidate] = lMaxOffset;
+
+        // The range of offsets is narrower than the frequency, so the number
+        // of partials in the band drops by one (at most once) across it.
+        final int lPartials = ((mNumBuckets - 1 - lMinOffset) / lIndex) + 1;
+        mSplitOffset[lCandidate] = (mNumBuckets - 1) - ((lPartials - 1) * lIndex);
+        mScaleBelowSplit[lCandidate] = (0.75 / lPartials) + 0.25;
+        mScaleAboveSplit[lCandidate] = (0.75 / (lPartials - 1)) + 0.25;
+      }
+
+      // Calculate the ranges of bins for frequencies that have 1 harmonic in
+      // the band.  Bins outside the band have a window coefficient of 0 and so
+      // can't contribute - the ranges are clipped to the band.
+      final List<int[]> lRanges = new LinkedList<int[]>();
+      int h = 1;
+      int k0 = (int)Math.floor((mMinIndex + mNumBuckets) / (h + 1));
+      if (k0 < mMinIndex)
       {
-        if ((lii >= mMinIndex) && (lii <= mMaxIndex))
+        k0 = mMinIndex;
+      }
+      int k1 = mMaxIndex;
+      while (k0 <= k1)
+      {
+        if (k0 <= mMaxIndex)
+        {
+          lRanges.add(new int[] {k0, Math.min(k1, mMaxIndex), h});
+        }
+
+        h++;
+        k0 = (int)Math.ceil(((mMinIndex + mNumBuckets) * h) / (h + 1));
+        if (k0 < mMinIndex)
         {
-          mWindowCoefficients[lii] = 1.0 - ((Math.abs(lCentreIndex - lii) * 2.0) / mNumBuckets);
+          k0 = mMinIndex;
+        }
+        k1 = (int)Math.floor(((mMinIndex - 1) * h) / (h - 1));
+        if (k1 > (mMinIndex + mNumBuckets))
+        {
+          k1 = mMinIndex + mMaxIndex;
         }
       }
 
-      System.out.println("");
+      mSingleStart = new int[lRanges.size()];
+      mSingleEnd = new int[lRanges.size()];
+      mSingleHarmonic = new int[lRanges.size()];
+      int lRangeIndex = 0;
+      for (final int[] lRange : lRanges)
+      {
+        mSingleStart[lRangeIndex] = lRange[0];
+        mSingleEnd[lRangeIndex] = lRange[1];
+        mSingleHarmonic[lRangeIndex] = lRange[2];
+        lRangeIndex++;
+      }
     }
   }
 
@@ -69,6 +169,41 @@ public class KlapuriWeightCalculator
     mBands = lBands.toArray(new Band[lBands.size()]);
   }
 
+  /**
+   * @return one past the highest bin of the whitened spectrum used to
+   * calculate the weights.
+   */
+  public int getEndBin()
+  {
+    return mBands[mBands.length - 1].mMaxIndex + 1;
+  }
+
+  /**
+   * @return the number of bands over which weights are calculated.
+   */
+  public int getNumBands()
+  {
+    return mBands.length;
+  }
+
+  /**
+   * @param xiBand - the index of a band.
+   * @return the lowest bin of the whitened spectrum in the band.
+   */
+  public int getBandStart(int xiBand)
+  {
+    return mBands[xiBand].mMinIndex;
+  }
+
+  /**
+   * @param xiBand - the index of a band.
+   * @return one past the highest bin of the whitened spectrum in the band.
+   */
+  public int getBandEnd(int xiBand)
+  {
+    return mBands[xiBand].mMaxIndex + 1;
+  }
+
   /**
    * Calculate the bandwise Klapuri weights for the given whitened spectrum.
    *
@@ -85,6 +220,20 @@ public class KlapuriWeightCalculator
     return lBandWeights;
   }
 
+  /**
+   * Calculate the Klapuri weights for the given whitened spectrum in a single
+   * band.  Depends only on the bins from {@link #getBandStart(int)} to
+   * {@link #getBandEnd(int)}.
+   *
+   * @param xiWhitened - whitened spectrum.
+   * @param xiBand - the index of the band.
+   * @return the weights in the band.
+   */
+  public double[] calculateBandWeights(double[] xiWhitened, int xiBand)
+  {
+    return calculateBandWeights(xiWhitened, mBands[xiBand]);
+  }
+
   /**
    * Calculate global weights from bandwise weights.  See
    * {@link #calculateBandwiseWeights(double[])}.
@@ -177,78 +326,70 @@ public class KlapuriWeightCalculator
   {
     final double lWeights[] = new double[Math.max(mDescriptor.mMaxFreqIndex, xiBand.mMaxIndex + 1)];
 
+    // Apply the band window.
+    final double[] lWindowed = new double[xiBand.mNumBuckets];
+    for (int lii = 0; lii < xiBand.mNumBuckets; lii++)
+    {
+      lWindowed[lii] = xiWhitened[xiBand.mMinIndex + lii] *
+                                                xiBand.mWindowCoefficients[lii];
+    }
+
     // Look for frequencies that have more than 1 harmonic in the band.
-    for (int lIndex = mDescriptor.mMinFreqIndex;
-         lIndex <= (xiBand.mNumBuckets - 1);
-         lIndex++)
+    calculateHarmonicSums(lWindowed, xiBand, lWeights);
+
+    // Look for frequencies that have 1 harmonic in the band.
+    for (int lRange = 0; lRange < xiBand.mSingleStart.length; lRange++)
     {
-      // Calculate the range of offsets at which we'll look for this frequency.
-      // This allows for inharmonicites as per (5) in [Klapuri2005].
-      int lMinOffset = (int)Math.round(Math.ceil((double)xiBand.mMinIndex / (double)lIndex) * lIndex) - xiBand.mMinIndex;
-      final int h = xiBand.mMaxIndex / lIndex;
-      final double lDelta = xiBand.mMaxIndex * (Math.sqrt(1.0 + (0.01 * (Math.pow(h, 2.0) - 1.0))) - 1.0);
-      int lMaxOffset = (int)(lMinOffset + lDelta);
-      if (lMaxOffset > ((lMinOffset + lIndex) - 1))
+      final int h = xiBand.mSingleHarmonic[lRange];
+      for (int k = xiBand.mSingleStart[lRange]; k <= xiBand.mSingleEnd[lRange]; k++)
       {
-        // The spread of positions in which we expect to find the frequency is
-        // greater than the frequency itself.  Search everywhere.
-        lMinOffset = 0;
-        lMaxOffset = lIndex - 1;
+        final int n = k / h;
+        lWeights[n] = Math.max(lWeights[n], lWindowed[k - xiBand.mMinIndex]);
       }
+    }
+
+    return lWeights;
+  }
+
+  /**
+   * For each candidate F0 with more than one harmonic in the band, sum the
+   * windowed power of appropriately separated frequencies at each allowed
+   * offset, and take the maximum sum over those offsets.
+   *
+   * @param xiWindowed - the windowed spectrum of the band.
+   * @param xiBand - the band.
+   * @param xoWeights - array to receive the weight of each candidate.
+   */
+  private void calculateHarmonicSums(double[] xiWindowed,
+                                     Band xiBand,
+                                     double[] xoWeights)
+  {
+    final int lNumBuckets = xiBand.mNumBuckets;
+    for (int lCandidate = 0; lCandidate < xiBand.mNumCandidates; lCandidate++)
+    {
+      final int lIndex = mDescriptor.mMinFreqIndex + lCandidate;
+      final int lMaxOffset = xiBand.mMaxOffset[lCandidate];
+      final int lSplitOffset = xiBand.mSplitOffset[lCandidate];
+      final double lScaleBelow = xiBand.mScaleBelowSplit[lCandidate];
+      final double lScaleAbove = xiBand.mScaleAboveSplit[lCandidate];
 
-      // Within the range of allowed offsets, sum the power of appropriately
-      // separated frequencies.  Find the maximum value for that sum over all
-      // allowed offsets.
       double lMaxSum = 0;
-      for (int lOffset = lMinOffset;
+      for (int lOffset = xiBand.mMinOffset[lCandidate];
            lOffset <= lMaxOffset;
            lOffset++)
       {
         double lSum = 0;
-        int lNumPartialsIncluded = 0;
-        for (int lGlobalIndex = xiBand.mMinIndex + lOffset;
-             lGlobalIndex <= xiBand.mMaxIndex;
-             lGlobalIndex += lIndex)
+        for (int lLocalIndex = lOffset;
+             lLocalIndex < lNumBuckets;
+             lLocalIndex += lIndex)
         {
-          lSum += xiWhitened[lGlobalIndex] * xiBand.mWindowCoefficients[lGlobalIndex];
-          lNumPartialsIncluded++;
+          lSum += xiWindowed[lLocalIndex];
         }
-        lSum *= (0.75 / lNumPartialsIncluded) + 0.25;
+        lSum *= (lOffset <= lSplitOffset) ? lScaleBelow : lScaleAbove;
         lMaxSum = Math.max(lSum,  lMaxSum);
       }
 
-      lWeights[lIndex] = lMaxSum;
-    }
-
-    // Look for frequencies that have 1 harmonic in the band.
-    int h = 1;
-    int k0 = (int)Math.floor((xiBand.mMinIndex + xiBand.mNumBuckets) / (h + 1));
-    if (k0 < xiBand.mMinIndex)
-    {
-      k0 = xiBand.mMinIndex;
+      xoWeights[lIndex] = lMaxSum;
     }
-    int k1 = xiBand.mMaxIndex;
-    while (k0 <= k1)
-    {
-      for (int k = k0; k <= k1; k++)
-      {
-        final int n = Math.round(k / h);
-        lWeights[n] = Math.max(lWeights[n], xiWhitened[k] * xiBand.mWindowCoefficients[k]);
-      }
-
-      h++;
-      k0 = (int)Math.ceil(((xiBand.mMinIndex + xiBand.mNumBuckets) * h) / (h + 1));
-      if (k0 < xiBand.mMinIndex)
-      {
-        k0 = xiBand.mMinIndex;
-      }
-      k1 = (int)Math.floor(((xiBand.mMinIndex - 1) * h) / (h - 1));
-      if (k1 > (xiBand.mMinIndex + xiBand.mNumBuckets))
-      {
-        k1 = xiBand.mMinIndex + xiBand.mMaxIndex;
-      }
-    }
-
-    return lWeights;
   }
 }
@@ -0,0 +1,409 @@
+package core;
+
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.TargetDataLine;
+
+import core.F0Estimator.AudioDescriptor;
+import core.WavFile.WavFileException;
+
+/**
+ * Real-time F0 estimation from a live input.
+ *
+ * Audio is captured on a dedicated thread, which assembles a frame at every
+ * hop and stamps it with the time at which its last sample arrived.  Frames
+ * are handed to the analysis thread through a small fixed pool of buffers, so
+ * that nothing is allocated per hop.
+ *
+ * Each hop has a hard deadline, measured from the arrival of its last sample.
+ * When analysis falls behind the input, hops are dropped rather than queued:
+ * - if every buffer is waiting to be analysed, capture reuses the oldest
+ *   (an overrun), so that capture never blocks and the input never overflows;
+ * - if a hop has already waited longer than the deadline when analysis
+ *   reaches it, it is discarded unanalysed (late).
+ * The analysis thread therefore always works on the freshest audio, and the
+ * track simply has gaps while it catches up.
+ *
+ * The end-to-end latency of every analysed hop - from the arrival of its last
+ * sample to the publication of its F0 estimate - is recorded, and reported
+ * periodically along with the number of hops dropped.
+ */
+public class LiveTranscriber
+{
+  /**
+   * The number of frame buffers shared between capture and analysis.
+   */
+  private static final int NUM_BUFFERS = 8;
+
+  /**
+   * The default deadline for each hop (in milliseconds).
+   */
+  private static final int DEFAULT_DEADLINE_MS = 50;
+
+  /**
+   * The interval between latency reports (in nanoseconds).
+   */
+  private static final long REPORT_NANOS = 5000000000L;
+
+  /**
+   * A frame buffer, passed between the capture and analysis threads.
+   */
+  private static class Hop
+  {
+    public final double[] mFrame;
+    public long mOffset;
+    public long mArrivalNanos;
+
+    public Hop(int xiFrameSize)
+    {
+      mFrame = new double[xiFrameSize];
+    }
+  }
+
+  /**
+   * Marker, queued by the capture thread once the input is exhausted.
+   */
+  private static final Hop END = new Hop(0);
+
+  private final AudioDescriptor mDescriptor;
+  private final FrameReader mReader;
+  private final long mDeadlineNanos;
+  private final FrameAnalyser mAnalyser;
+  private final FrameAnalysis mResult;
+  private final List<ResultSink> mSinks = new ArrayList<ResultSink>();
+
+  // Buffers available for capture, and those awaiting analysis.
+  private final BlockingQueue<Hop> mFree = new ArrayBlockingQueue<Hop>(NUM_BUFFERS);
+  private final BlockingQueue<Hop> mReady = new ArrayBlockingQueue<Hop>(NUM_BUFFERS + 1);
+
+  // Statistics.
+  private final StageTimer mLatency = new StageTimer("latency");
+  private final AtomicLong mOverruns = new AtomicLong();
+  private final AtomicLong mLate = new AtomicLong();
+  private final AtomicLong mMissed = new AtomicLong();
+
+  // Failure of the capture thread, if any.
+  private volatile Exception mCaptureFailure;
+
+  /**
+   * Run live transcription.  The F0 track is written as it is produced (see
+   * {@link F0TrackWriter}) and latency reports are written to stderr.
+   *
+   * @param xiArgs - [-rate HZ] [-deadline MS] [-out FILE] [-pipe FILE |
+   * -port N] [profile options].  By default audio is captured from the
+   * default sound card line at 44.1kHz, and analysed with the standard
+   * profile (see {@link AnalysisProfile#USAGE} for the options; frames are
+   * always analysed in double precision).  -pipe reads raw 16-bit signed
+   * little-endian mono PCM from a file or named pipe ("-" for stdin), and
+   * -port accepts a single connection on a TCP port of the loopback
+   * interface and reads the same format from it.  The track is written to
+   * stdout unless -out is given.
+   * @throws Exception if anything goes wrong.
+   */
+  public static void main(String[] xiArgs) throws Exception
+  {
+    int lRate = 44100;
+    int lDeadlineMs = DEFAULT_DEADLINE_MS;
+    String lOut = null;
+    String lPipe = null;
+    int lPort = -1;
+    AnalysisProfile lProfile = AnalysisProfile.STANDARD;
+    for (int lii = 0; lii < xiArgs.length; lii++)
+    {
+      if (xiArgs[lii].equals("-rate"))
+      {
+        lRate = Integer.parseInt(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-deadline"))
+      {
+        lDeadlineMs = Integer.parseInt(xiArgs[++lii]);
+      }
+      else if (xiArgs[lii].equals("-out"))
+      {
+        lOut = xiArgs[++lii];
+      }
+      else if (xiArgs[lii].equals("-pipe"))
+      {
+        lPipe = xiArgs[++lii];
+      }
+      else if (xiArgs[lii].equals("-port"))
+      {
+        lPort = Integer.parseInt(xiArgs[++lii]);
+      }
+      else if (AnalysisProfile.isOption(xiArgs[lii]))
+      {
+        lProfile = lProfile.withOption(xiArgs[lii], xiArgs[++lii]);
+      }
+      else
+      {
+        System.err.println("Usage: LiveTranscriber [-rate HZ] [-deadline MS] " +
+                           "[-out FILE] [-pipe FILE | -port N] " +
+                           AnalysisProfile.USAGE);
+        System.exit(1);
+      }
+    }
+
+    final AudioDescriptor lDescriptor = lProfile.describe(lRate);
+    final int lStepSize = lProfile.getStepSize(lRate);
+
+    final InputStream lStream;
+    if (lPipe != null)
+    {
+      lStream = lPipe.equals("-") ? System.in : new FileInputStream(lPipe);
+    }
+    else if (lPort >= 0)
+    {
+      // Only local processes may stream audio in.
+      final ServerSocket lServer =
+                 new ServerSocket(lPort, 1, InetAddress.getLoopbackAddress());
+      System.err.println("Waiting for PCM on port " + lServer.getLocalPort());
+      final Socket lSocket = lServer.accept();
+      lServer.close();
+      lSocket.setTcpNoDelay(true);
+      lStream = lSocket.getInputStream();
+    }
+    else
+    {
+      // Keep the line's buffer short: anything it holds is latency.
+      final AudioFormat lFormat = new AudioFormat(lRate, 16, 1, true, false);
+      final TargetDataLine lLine = AudioSystem.getTargetDataLine(lFormat);
+      lLine.open(lFormat, lStepSize * 2 * 4);
+      lLine.start();
+      lStream = new AudioInputStream(lLine);
+    }
+
+    final PcmStreamSource lSource =
+                       new PcmStreamSource(lStream, lDescriptor.mFrameSize);
+    final Writer lWriter = (lOut == null) ?
+                                      new OutputStreamWriter(System.out) :
+                                      new FileWriter(lOut);
+
+    final LiveTranscriber lTranscriber =
+      new LiveTranscriber(lDescriptor, lSource, lStepSize, lDeadlineMs);
+    lTranscriber.addSink(new F0TrackWriter(lWriter, lDescriptor));
+
+    // Report on the way out, however the input ends.
+    Runtime.getRuntime().addShutdownHook(new Thread()
+    {
+      @Override
+      public void run()
+      {
+        System.err.println(lTranscriber.getReport());
+      }
+    });
+
+    try
+    {
+      lTranscriber.run();
+    }
+    finally
+    {
+      lSource.close();
+    }
+  }
+
+  /**
+   * Create a live transcriber.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiSource - the live input.
+   * @param xiStepSize - the hop between successive frames (in samples).
+   * @param xiDeadlineMs - the deadline for each hop (in milliseconds).
+   */
+  public LiveTranscriber(AudioDescriptor xiDescriptor,
+                         SampleSource xiSource,
+                         int xiStepSize,
+                         int xiDeadlineMs)
+  {
+    mDescriptor = xiDescriptor;
+    mReader = new FrameReader(xiSource, xiDescriptor.mFrameSize, xiStepSize);
+    mDeadlineNanos = xiDeadlineMs * 1000000L;
+    mAnalyser = new FrameAnalyser(xiDescriptor,
+                                  TableCache.getWhitener(xiDescriptor),
+                                  TableCache.getWeightCalculator(xiDescriptor));
+    mResult = new FrameAnalysis(xiDescriptor);
+    for (int lii = 0; lii < NUM_BUFFERS; lii++)
+    {
+      mFree.add(new Hop(xiDescriptor.mFrameSize));
+    }
+  }
+
+  /**
+   * Register a receiver for the results.  Sinks must be added before
+   * transcription is started.
+   *
+   * @param xiSink - the sink.
+   */
+  public void addSink(ResultSink xiSink)
+  {
+    mSinks.add(xiSink);
+  }
+
+  /**
+   * Transcribe the input until it is exhausted.  The sinks are closed when
+   * done.
+   *
+   * @throws IOException if the input can't be read or a sink fails.
+   * @throws InterruptedException if interrupted while waiting for input.
+   */
+  public void run() throws IOException, InterruptedException
+  {
+    final Thread lCapture = new Thread("LiveCapture")
+    {
+      @Override
+      public void run()
+      {
+        capture();
+      }
+    };
+    lCapture.setDaemon(true);
+    lCapture.setPriority(Thread.MAX_PRIORITY);
+    lCapture.start();
+
+    final long lStepMicros = (mReader.getStepSize() * 1000000L) /
+                                                        mDescriptor.mSampleRate;
+    long lNextReport = System.nanoTime() + REPORT_NANOS;
+    try
+    {
+      Hop lHop;
+      while ((lHop = mReady.take()) != END)
+      {
+        final long lArrival = lHop.mArrivalNanos;
+        if ((System.nanoTime() - lArrival) > mDeadlineNanos)
+        {
+          mLate.incrementAndGet();
+          mFree.put(lHop);
+        }
+        else
+        {
+          mAnalyser.analyse(lHop.mFrame, mResult);
+          mResult.mOffset = lHop.mOffset;
+          mFree.put(lHop);
+
+          for (final ResultSink lSink : mSinks)
+          {
+            lSink.addFrame(mResult);
+          }
+
+          final long lLatency = System.nanoTime() - lArrival;
+          mLatency.record(lLatency);
+          if (lLatency > mDeadlineNanos)
+          {
+            mMissed.incrementAndGet();
+          }
+          if (PipelineMetrics.ENABLED)
+          {
+            PipelineMetrics.INSTANCE.frameProcessed(lStepMicros);
+          }
+        }
+
+        if (System.nanoTime() >= lNextReport)
+        {
+          System.err.println(getReport());
+          lNextReport += REPORT_NANOS;
+        }
+      }
+    }
+    finally
+    {
+      for (final ResultSink lSink : mSinks)
+      {
+        lSink.close();
+      }
+    }
+
+    if (mCaptureFailure != null)
+    {
+      throw new IOException("Capture failed", mCaptureFailure);
+    }
+  }
+
+  /**
+   * @return a summary of the hops analysed and dropped, and of the latency.
+   */
+  public String getReport()
+  {
+    return String.format(Locale.ROOT,
+                         "Live: %d hops analysed, %d dropped late, %d dropped " +
+                         "on overrun, %d missed deadline; latency " +
+                         "mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms",
+                         mLatency.getCount(),
+                         mLate.get(),
+                         mOverruns.get(),
+                         mMissed.get(),
+                         mLatency.getMeanMicros() / 1000,
+                         mLatency.getP50Micros() / 1000,
+                         mLatency.getP99Micros() / 1000,
+                         mLatency.getMaxMicros() / 1000);
+  }
+
+  /**
+   * Capture frames until the input is exhausted, then queue END.
+   */
+  private void capture()
+  {
+    try
+    {
+      while (true)
+      {
+        // Never wait for analysis: if no buffer is free, take the oldest
+        // one still waiting to be analysed.
+        Hop lHop = mFree.poll();
+        if (lHop == null)
+        {
+          lHop = mReady.poll();
+          if (lHop != null)
+          {
+            mOverruns.incrementAndGet();
+          }
+          else
+          {
+            // The analysis thread has taken the last hop, and will return
+            // its buffer shortly.
+            lHop = mFree.take();
+          }
+        }
+
+        if (!mReader.nextFrame(lHop.mFrame))
+        {
+          break;
+        }
+        lHop.mArrivalNanos = System.nanoTime();
+        lHop.mOffset = mReader.getFrameOffset();
+        mReady.put(lHop);
+      }
+    }
+    catch (final IOException | WavFileException | InterruptedException lEx)
+    {
+      mCaptureFailure = lEx;
+    }
+    finally
+    {
+      try
+      {
+        mReady.put(END);
+      }
+      catch (final InterruptedException lEx)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
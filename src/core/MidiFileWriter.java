@@ -0,0 +1,186 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes notes to a standard MIDI file.
+ *
+ * The file is format 0: a single track, on channel 1, at a fixed tempo of 120
+ * beats per minute and TICKS_PER_BEAT ticks per beat.  Events are encoded as
+ * they arrive (in time order, as published by a {@link NoteTracker}) into a
+ * buffer that is written to the file's channel whenever it fills, so nothing
+ * is accumulated in memory however long the piece.  The track's length isn't
+ * known until the end, so it is written as 0 and patched when the file is
+ * closed.
+ */
+public class MidiFileWriter implements NoteSink
+{
+  /**
+   * The time resolution (ticks per beat).
+   */
+  public static final int TICKS_PER_BEAT = 480;
+
+  /**
+   * The tempo (microseconds per beat).
+   */
+  private static final int MICROS_PER_BEAT = 500000;
+
+  private static final double TICKS_PER_SECOND =
+                                 TICKS_PER_BEAT * (1e6 / MICROS_PER_BEAT);
+
+  private static final int BUFFER_SIZE = 8192;
+
+  // The offset of the track length in the file.
+  private static final int TRACK_LENGTH_OFFSET = 18;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final ByteBuffer mBuffer;
+
+  // The number of bytes of track data written (or buffered).
+  private long mTrackLength;
+
+  // The time of the last event (in ticks).
+  private long mLastTick;
+
+  /**
+   * Create a MIDI file writer.
+   *
+   * @param xiFile - the file to write.
+   * @throws IOException if the file can't be created.
+   */
+  public MidiFileWriter(File xiFile) throws IOException
+  {
+    mFile = new RandomAccessFile(xiFile, "rw");
+    mFile.setLength(0);
+    mChannel = mFile.getChannel();
+    mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Header chunk: format 0, 1 track, ticks per beat.
+    mBuffer.put(new byte[] {'M', 'T', 'h', 'd'});
+    mBuffer.putInt(6);
+    mBuffer.putShort((short)0);
+    mBuffer.putShort((short)1);
+    mBuffer.putShort((short)TICKS_PER_BEAT);
+
+    // Track chunk, with its length to be patched.
+    mBuffer.put(new byte[] {'M', 'T', 'r', 'k'});
+    mBuffer.putInt(0);
+
+    // Set the tempo.
+    writeDelta(0);
+    writeByte(0xFF);
+    writeByte(0x51);
+    writeByte(0x03);
+    writeByte(MICROS_PER_BEAT >> 16);
+    writeByte((MICROS_PER_BEAT >> 8) & 0xFF);
+    writeByte(MICROS_PER_BEAT & 0xFF);
+  }
+
+  @Override
+  public void noteOn(double xiTime, int xiPitch, int xiVelocity)
+    throws IOException
+  {
+    writeDelta(toTicks(xiTime));
+    writeByte(0x90);
+    writeByte(xiPitch);
+    writeByte(Math.max(1, Math.min(127, xiVelocity)));
+  }
+
+  @Override
+  public void noteOff(double xiTime, int xiPitch) throws IOException
+  {
+    writeDelta(toTicks(xiTime));
+    writeByte(0x80);
+    writeByte(xiPitch);
+    writeByte(0x40);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      // End of track.
+      writeDelta(mLastTick);
+      writeByte(0xFF);
+      writeByte(0x2F);
+      writeByte(0x00);
+      flush();
+
+      // Patch the track length.
+      final ByteBuffer lLength = ByteBuffer.allocate(4);
+      lLength.putInt((int)mTrackLength);
+      lLength.flip();
+      mChannel.write(lLength, TRACK_LENGTH_OFFSET);
+    }
+    finally
+    {
+      mFile.close();
+    }
+  }
+
+  /**
+   * @return the time in ticks, no earlier than the last event.
+   */
+  private long toTicks(double xiTime)
+  {
+    return Math.max(mLastTick, Math.round(xiTime * TICKS_PER_SECOND));
+  }
+
+  /**
+   * Write the delta time from the last event as a variable-length quantity.
+   */
+  private void writeDelta(long xiTick) throws IOException
+  {
+    long lDelta = xiTick - mLastTick;
+    mLastTick = xiTick;
+
+    // Seven bits per byte, most significant first, with the top bit set on
+    // all but the last.
+    long lEncoded = lDelta & 0x7F;
+    while ((lDelta >>= 7) > 0)
+    {
+      lEncoded = (lEncoded << 8) | 0x80 | (lDelta & 0x7F);
+    }
+    while (true)
+    {
+      writeByte((int)(lEncoded & 0xFF));
+      if ((lEncoded & 0x80) == 0)
+      {
+        break;
+      }
+      lEncoded >>>= 8;
+    }
+  }
+
+  /**
+   * Write a byte of track data, flushing the buffer if it is full.
+   */
+  private void writeByte(int xiByte) throws IOException
+  {
+    if (!mBuffer.hasRemaining())
+    {
+      flush();
+    }
+    mBuffer.put((byte)xiByte);
+    mTrackLength++;
+  }
+
+  /**
+   * Write the buffer to the file.
+   */
+  private void flush() throws IOException
+  {
+    mBuffer.flip();
+    while (mBuffer.hasRemaining())
+    {
+      mChannel.write(mBuffer);
+    }
+    mBuffer.clear();
+  }
+}
@@ -0,0 +1,39 @@
+package core;
+
+import java.io.IOException;
+
+/**
+ * Receiver of note events.
+ *
+ * Sinks are fed by a {@link NoteTracker}, which publishes each event as soon
+ * as it is final, in time order.
+ */
+public interface NoteSink
+{
+  /**
+   * Receive the start of a note.
+   *
+   * @param xiTime - the time (in seconds) at which the note starts.
+   * @param xiPitch - the MIDI note number.
+   * @param xiVelocity - the MIDI velocity (1-127).
+   * @throws IOException if the sink can't record the event.
+   */
+  void noteOn(double xiTime, int xiPitch, int xiVelocity) throws IOException;
+
+  /**
+   * Receive the end of a note.  Every note started is ended (by the time the
+   * sink is closed).
+   *
+   * @param xiTime - the time (in seconds) at which the note ends.
+   * @param xiPitch - the MIDI note number.
+   * @throws IOException if the sink can't record the event.
+   */
+  void noteOff(double xiTime, int xiPitch) throws IOException;
+
+  /**
+   * Called once all events have been published (or processing has failed).
+   *
+   * @throws IOException if the sink can't be closed.
+   */
+  void close() throws IOException;
+}
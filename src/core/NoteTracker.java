@@ -0,0 +1,303 @@
+package core;
+
+import java.io.IOException;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Turns the F0s detected in each frame into note events, as frames arrive.
+ *
+ * Each pitch (MIDI note number) in the frequency range is tracked by a
+ * two-state (sounding or silent) hidden Markov model, whose observation in
+ * each frame is whether an F0 at that pitch was detected (see
+ * {@link PolyphonicEstimator}).  The states are decoded with a fixed-lag
+ * Viterbi decoder: once LOOKBACK frames have arrived since a frame, the most
+ * likely path to the latest frame is traced back to it and its state is
+ * final.  Changes of state are published to a {@link NoteSink} as note on and
+ * off events, in time order, so notes are reported LOOKBACK frames after they
+ * start or end.  The rest of the path is decoded when the tracker is closed.
+ *
+ * The model smooths over isolated detections and dropouts, so short spurious
+ * F0s don't become notes and notes aren't broken by a missed frame or two.
+ *
+ * Memory use is fixed - a score and LOOKBACK frames of back pointers and
+ * weights per pitch - so recordings of any length can be tracked.  Nothing is
+ * allocated per frame.
+ *
+ * The velocity of a note is taken from the greatest weight of its pitch over
+ * the LOOKBACK frames from its start, relative to the greatest weight of any
+ * F0 seen so far.
+ */
+public class NoteTracker implements ResultSink
+{
+  /**
+   * The number of frames after which a frame's state is final.
+   */
+  public static final int LOOKBACK = 16;
+
+  // Log probabilities of the model: the initial state, the transitions
+  // between frames and the observations in each state.
+  private static final double LOG_START_SOUNDING = Math.log(0.05);
+  private static final double LOG_START_SILENT = Math.log(0.95);
+  private static final double LOG_STAY_SOUNDING = Math.log(0.9);
+  private static final double LOG_END = Math.log(0.1);
+  private static final double LOG_STAY_SILENT = Math.log(0.98);
+  private static final double LOG_BEGIN = Math.log(0.02);
+  private static final double LOG_DETECTED_SOUNDING = Math.log(0.7);
+  private static final double LOG_MISSED_SOUNDING = Math.log(0.3);
+  private static final double LOG_DETECTED_SILENT = Math.log(0.2);
+  private static final double LOG_MISSED_SILENT = Math.log(0.8);
+
+  private final AudioDescriptor mDescriptor;
+  private final NoteSink mSink;
+
+  // The pitch tracked at each bin (up to mMaxFreqIndex), as an index from
+  // mMinPitch, or -1 if out of MIDI range.
+  private final int[] mBinPitch;
+  private final int mMinPitch;
+  private final int mNumPitches;
+
+  // The weight of the F0 at each pitch in the latest frame (0 if none).
+  private final double[] mObserved;
+
+  // The log probability of the best path to each state of each pitch in the
+  // latest frame.
+  private final double[] mSoundingScore;
+  private final double[] mSilentScore;
+
+  // For each pitch and each of the last LOOKBACK frames (indexed by frame
+  // number modulo LOOKBACK), whether the best path to each state came from
+  // the sounding state, and the weight observed.
+  private final boolean[][] mSoundingFromSounding;
+  private final boolean[][] mSilentFromSounding;
+  private final double[][] mWeights;
+
+  // The offset of each of the last LOOKBACK frames.
+  private final long[] mOffsets;
+
+  // Whether each pitch is sounding in the last frame whose state is final.
+  private final boolean[] mSounding;
+
+  // Scratch space for the states decoded from the best path.
+  private final boolean[] mPath;
+
+  // The number of frames added, the number whose state is final, and the
+  // offset of the frame before the latest.
+  private long mNumFrames;
+  private long mNumFinal;
+  private long mPreviousOffset;
+
+  // The greatest weight of any F0 seen.
+  private double mMaxWeight;
+
+  /**
+   * Create a note tracker.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiSink - the receiver of the notes.  It is closed when the tracker
+   * is closed.
+   */
+  public NoteTracker(AudioDescriptor xiDescriptor, NoteSink xiSink)
+  {
+    mDescriptor = xiDescriptor;
+    mSink = xiSink;
+
+    final int lMinPitch = Math.max(0, toPitch(xiDescriptor.mMinFreqIndex));
+    final int lMaxPitch = Math.min(127, toPitch(xiDescriptor.mMaxFreqIndex));
+    mMinPitch = lMinPitch;
+    mNumPitches = Math.max(0, (lMaxPitch + 1) - lMinPitch);
+    mBinPitch = new int[xiDescriptor.mMaxFreqIndex + 1];
+    for (int lBin = 0; lBin < mBinPitch.length; lBin++)
+    {
+      final int lPitch = (lBin == 0) ? -1 : toPitch(lBin);
+      mBinPitch[lBin] = ((lPitch < lMinPitch) || (lPitch > lMaxPitch)) ? -1 :
+                                                        lPitch - lMinPitch;
+    }
+
+    mObserved = new double[mNumPitches];
+    mSoundingScore = new double[mNumPitches];
+    mSilentScore = new double[mNumPitches];
+    mSoundingFromSounding = new boolean[mNumPitches][LOOKBACK];
+    mSilentFromSounding = new boolean[mNumPitches][LOOKBACK];
+    mWeights = new double[mNumPitches][LOOKBACK];
+    mOffsets = new long[LOOKBACK];
+    mSounding = new boolean[mNumPitches];
+    mPath = new boolean[LOOKBACK];
+  }
+
+  /**
+   * @return the MIDI note number nearest the frequency of a bin.
+   */
+  private int toPitch(int xiBin)
+  {
+    final double lFreq = xiBin * mDescriptor.mBucketSizeHz;
+    return (int)Math.round(69 + (12 * (Math.log(lFreq / 440) / Math.log(2))));
+  }
+
+  @Override
+  public void addFrame(FrameAnalysis xiFrame) throws IOException
+  {
+    // Record the strongest F0 detected at each pitch.
+    for (int lPitch = 0; lPitch < mNumPitches; lPitch++)
+    {
+      mObserved[lPitch] = 0;
+    }
+    for (int lii = 0; lii < xiFrame.mNumF0s; lii++)
+    {
+      final int lBin = xiFrame.mF0Indices[lii];
+      final int lPitch = (lBin < mBinPitch.length) ? mBinPitch[lBin] : -1;
+      if (lPitch >= 0)
+      {
+        final double lWeight = Math.max(Double.MIN_VALUE, xiFrame.mF0Weights[lii]);
+        mObserved[lPitch] = Math.max(mObserved[lPitch], lWeight);
+        mMaxWeight = Math.max(mMaxWeight, lWeight);
+      }
+    }
+
+    // Extend the best paths to each state of each pitch.
+    final int lSlot = (int)(mNumFrames % LOOKBACK);
+    for (int lPitch = 0; lPitch < mNumPitches; lPitch++)
+    {
+      final boolean lDetected = mObserved[lPitch] > 0;
+      final double lSoundingLikelihood = lDetected ? LOG_DETECTED_SOUNDING :
+                                                     LOG_MISSED_SOUNDING;
+      final double lSilentLikelihood = lDetected ? LOG_DETECTED_SILENT :
+                                                   LOG_MISSED_SILENT;
+      double lSounding;
+      double lSilent;
+      if (mNumFrames == 0)
+      {
+        lSounding = LOG_START_SOUNDING;
+        lSilent = LOG_START_SILENT;
+      }
+      else
+      {
+        final double lKeep = mSoundingScore[lPitch] + LOG_STAY_SOUNDING;
+        final double lBegin = mSilentScore[lPitch] + LOG_BEGIN;
+        mSoundingFromSounding[lPitch][lSlot] = lKeep >= lBegin;
+        lSounding = Math.max(lKeep, lBegin);
+
+        final double lEnd = mSoundingScore[lPitch] + LOG_END;
+        final double lRest = mSilentScore[lPitch] + LOG_STAY_SILENT;
+        mSilentFromSounding[lPitch][lSlot] = lEnd > lRest;
+        lSilent = Math.max(lEnd, lRest);
+      }
+      lSounding += lSoundingLikelihood;
+      lSilent += lSilentLikelihood;
+
+      // Keep the scores near 0, so they don't lose precision.
+      final double lBest = Math.max(lSounding, lSilent);
+      mSoundingScore[lPitch] = lSounding - lBest;
+      mSilentScore[lPitch] = lSilent - lBest;
+      mWeights[lPitch][lSlot] = mObserved[lPitch];
+    }
+    mOffsets[lSlot] = xiFrame.mOffset;
+    if (mNumFrames > 0)
+    {
+      mPreviousOffset = mOffsets[(int)((mNumFrames - 1) % LOOKBACK)];
+    }
+    mNumFrames++;
+
+    // The oldest frame held is now final.
+    if (mNumFrames == mNumFinal + LOOKBACK)
+    {
+      for (int lPitch = 0; lPitch < mNumPitches; lPitch++)
+      {
+        decode(lPitch);
+        publish(lPitch, mNumFinal, mPath[0]);
+      }
+      mNumFinal++;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      // Decode the rest of the path.
+      final long lNumPending = mNumFrames - mNumFinal;
+      for (long lFrame = mNumFinal; lFrame < mNumFrames; lFrame++)
+      {
+        for (int lPitch = 0; lPitch < mNumPitches; lPitch++)
+        {
+          decode(lPitch);
+          publish(lPitch, lFrame, mPath[(int)(lFrame - mNumFinal)]);
+        }
+      }
+
+      // End any notes still sounding, a step after the last frame.
+      if (lNumPending > 0)
+      {
+        final long lLastOffset = mOffsets[(int)((mNumFrames - 1) % LOOKBACK)];
+        final long lEndOffset = (mNumFrames > 1) ?
+                 lLastOffset + (lLastOffset - mPreviousOffset) :
+                 lLastOffset + mDescriptor.mFrameSize;
+        for (int lPitch = 0; lPitch < mNumPitches; lPitch++)
+        {
+          if (mSounding[lPitch])
+          {
+            mSounding[lPitch] = false;
+            mSink.noteOff((double)lEndOffset / mDescriptor.mSampleRate,
+                          mMinPitch + lPitch);
+          }
+        }
+      }
+    }
+    finally
+    {
+      mSink.close();
+    }
+  }
+
+  /**
+   * Trace the best path to the latest frame back to the first frame that
+   * isn't final, leaving the states of the frames since in mPath.
+   */
+  private void decode(int xiPitch)
+  {
+    int lIndex = (int)((mNumFrames - 1) - mNumFinal);
+    boolean lSounding = mSoundingScore[xiPitch] >= mSilentScore[xiPitch];
+    mPath[lIndex] = lSounding;
+    for (long lFrame = mNumFrames - 1; lFrame > mNumFinal; lFrame--)
+    {
+      final int lSlot = (int)(lFrame % LOOKBACK);
+      lSounding = lSounding ? mSoundingFromSounding[xiPitch][lSlot] :
+                              mSilentFromSounding[xiPitch][lSlot];
+      mPath[--lIndex] = lSounding;
+    }
+  }
+
+  /**
+   * Publish any change in the state of a pitch at a final frame.
+   */
+  private void publish(int xiPitch, long xiFrame, boolean xiSounding)
+    throws IOException
+  {
+    if (xiSounding == mSounding[xiPitch])
+    {
+      return;
+    }
+    mSounding[xiPitch] = xiSounding;
+
+    final double lTime = (double)mOffsets[(int)(xiFrame % LOOKBACK)] /
+                                                      mDescriptor.mSampleRate;
+    if (xiSounding)
+    {
+      // Take the strongest weight of the pitch in the frames held.
+      double lWeight = 0;
+      for (final double lFrameWeight : mWeights[xiPitch])
+      {
+        lWeight = Math.max(lWeight, lFrameWeight);
+      }
+      final int lVelocity = (mMaxWeight > 0) ?
+                     1 + (int)Math.round(126 * Math.sqrt(lWeight / mMaxWeight)) :
+                     64;
+      mSink.noteOn(lTime, mMinPitch + xiPitch, lVelocity);
+    }
+    else
+    {
+      mSink.noteOff(lTime, mMinPitch + xiPitch);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package core;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import core.F0Estimator.AudioDescriptor;
+import core.StageCache.Stage;
+import core.WavFile.WavFileException;
+
+/**
+ * Analyses batches of frames in parallel.
+ *
+ * Frames are read sequentially into a batch, each frame in the batch is then
+ * transformed, whitened and weighted on a fork/join pool, and the results are
+ * made available in time order.
+ *
+ * When the step between frames is small enough for the spectrum to be updated
+ * incrementally (see {@link SlidingDFT}), the batch is instead split into runs
+ * of consecutive frames, each of which is analysed in order by one thread.
+ *
+ * Batches can also be read from the cached output of a stage (see
+ * {@link StageCache}), in which case only the stages after it are run.
+ */
+public class ParallelAnalyser
+{
+  /**
+   * The number of frames per batch for each thread in the pool.
+   */
+  private static final int FRAMES_PER_THREAD = 16;
+
+  private final ForkJoinPool mPool;
+  private final AudioDescriptor mDescriptor;
+  private final int mStepSize;
+
+  // The number of consecutive frames analysed in order by a single task.
+  private final int mRunLength;
+
+  // Frame analysers hold a transformer and scratch space so are kept
+  // per-thread.  The whitener and weight calculator they use are shared.
+  private final ThreadLocal<FrameAnalyser> mAnalyser;
+
+  // The current batch, in double or single precision.
+  private final double[][] mFrames;
+  private final float[][] mFloatFrames;
+  private final FrameAnalysis[] mResults;
+
+  // The stage the current batch was read from, or null if it was read from
+  // the audio.
+  private Stage mResumeFrom;
+
+  /**
+   * Create a parallel analyser.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiParallelism - the number of threads to analyse with.
+   * @param xiStepSize - the step between the frames to be analysed (in
+   * samples).
+   * @param xiSinglePrecision - whether to read and transform frames in single
+   * precision.
+   */
+  public ParallelAnalyser(final AudioDescriptor xiDescriptor,
+                          int xiParallelism,
+                          final int xiStepSize,
+                          boolean xiSinglePrecision)
+  {
+    mPool = new ForkJoinPool(xiParallelism);
+    mDescriptor = xiDescriptor;
+    mStepSize = xiStepSize;
+    final Whitener lWhitener = TableCache.getWhitener(xiDescriptor);
+    final KlapuriWeightCalculator lWeightCalculator =
+                                TableCache.getWeightCalculator(xiDescriptor);
+    mAnalyser = new ThreadLocal<FrameAnalyser>()
+    {
+      @Override
+      protected FrameAnalyser initialValue()
+      {
+        return new FrameAnalyser(xiDescriptor,
+                                 lWhitener,
+                                 lWeightCalculator,
+                                 xiStepSize);
+      }
+    };
+    mRunLength = FrameAnalyser.isSliding(xiDescriptor,
+                                         lWhitener,
+                                         lWeightCalculator,
+                                         xiStepSize) ?
+                                     FrameAnalyser.RESYNC_INTERVAL : 1;
+
+    final int lBatchSize = xiParallelism * FRAMES_PER_THREAD;
+    mFrames = xiSinglePrecision ? null :
+                         new double[lBatchSize][xiDescriptor.mFrameSize];
+    mFloatFrames = xiSinglePrecision ?
+                         new float[lBatchSize][xiDescriptor.mFrameSize] : null;
+    mResults = new FrameAnalysis[lBatchSize];
+    for (int lii = 0; lii < lBatchSize; lii++)
+    {
+      mResults[lii] = new FrameAnalysis(xiDescriptor);
+    }
+  }
+
+  /**
+   * Read and analyse the next batch of frames.
+   *
+   * @param xiReader - the source of frames.
+   *
+   * @return the number of frames analysed (0 once the reader is exhausted).
+   * Results are available from {@link #getResult(int)}, until the next batch
+   * is analysed.
+   *
+   * @throws IOException if the audio can't be read.
+   * @throws WavFileException if the audio is malformed.
+   */
+  public int analyseBatch(FrameReader xiReader)
+    throws IOException, WavFileException
+  {
+    int lNumFrames = 0;
+    while ((lNumFrames < mResults.length) &&
+           ((mFrames != null) ? xiReader.nextFrame(mFrames[lNumFrames]) :
+                                xiReader.nextFrame(mFloatFrames[lNumFrames])))
+    {
+      mResults[lNumFrames].mOffset = xiReader.getFrameOffset();
+      lNumFrames++;
+    }
+
+    if (lNumFrames > 0)
+    {
+      mResumeFrom = null;
+      mPool.invoke(new AnalysisTask(0, lNumFrames));
+      recordFrames(lNumFrames, xiReader.getStepSize());
+    }
+
+    return lNumFrames;
+  }
+
+  /**
+   * Read the next batch of frames from the cached output of a stage, and
+   * complete their analysis.
+   *
+   * @param xiStage - the stage cached.
+   * @param xiReader - the cached output of the stage.
+   * @param xiWhitenedReader - the cached whitened spectra, if resuming from
+   * the bandwise weights (which need them).  Otherwise ignored.
+   *
+   * @return the number of frames analysed (0 once the reader is exhausted).
+   * Results are available from {@link #getResult(int)}, until the next batch
+   * is analysed.
+   *
+   * @throws IOException if the cache can't be read, or the cached stages
+   * don't match.
+   */
+  public int resumeBatch(Stage xiStage,
+                         StageCache.Reader xiReader,
+                         StageCache.Reader xiWhitenedReader)
+    throws IOException
+  {
+    if (xiStage == Stage.SPECTRUM)
+    {
+      keepMagnitudes();
+    }
+
+    int lNumFrames = 0;
+    while ((lNumFrames < mResults.length) &&
+           xiReader.readFrame(mResults[lNumFrames]))
+    {
+      if ((xiStage == Stage.BANDWISE) &&
+          !xiWhitenedReader.readFrame(mResults[lNumFrames]))
+      {
+        throw new IOException("Cached stages are inconsistent");
+      }
+      lNumFrames++;
+    }
+
+    if (lNumFrames > 0)
+    {
+      mResumeFrom = xiStage;
+      mPool.invoke(new AnalysisTask(0, lNumFrames));
+      recordFrames(lNumFrames, mStepSize);
+    }
+
+    return lNumFrames;
+  }
+
+  /**
+   * Count the frames of a batch in the pipeline metrics, if enabled.
+   */
+  private void recordFrames(int xiNumFrames, int xiStepSize)
+  {
+    if (PipelineMetrics.ENABLED)
+    {
+      final long lStepMicros = (xiStepSize * 1000000L) / mDescriptor.mSampleRate;
+      for (int lii = 0; lii < xiNumFrames; lii++)
+      {
+        PipelineMetrics.INSTANCE.frameProcessed(lStepMicros);
+      }
+    }
+  }
+
+  /**
+   * @return the analysis of a frame in the most recent batch.
+   *
+   * @param xiIndex - the index of the frame within the batch.
+   */
+  public FrameAnalysis getResult(int xiIndex)
+  {
+    return mResults[xiIndex];
+  }
+
+  /**
+   * Keep the magnitude spectrum of each frame in its result, as well as the
+   * whitened spectrum and weights.
+   */
+  public void keepMagnitudes()
+  {
+    for (final FrameAnalysis lResult : mResults)
+    {
+      if (lResult.mMagnitudes == null)
+      {
+        lResult.mMagnitudes = new double[mDescriptor.mNumBins];
+      }
+    }
+  }
+
+  /**
+   * Release the threads used for analysis.
+   */
+  public void close()
+  {
+    mPool.shutdown();
+  }
+
+  /**
+   * Analyse a run of consecutive frames of the current batch, in order.
+   */
+  private void analyse(int xiStart, int xiEnd)
+  {
+    final FrameAnalyser lAnalyser = mAnalyser.get();
+    lAnalyser.reset();
+    for (int lii = xiStart; lii < xiEnd; lii++)
+    {
+      if (mResumeFrom == Stage.SPECTRUM)
+      {
+        lAnalyser.analyseMagnitudes(mResults[lii].mMagnitudes, mResults[lii]);
+      }
+      else if (mResumeFrom == Stage.WHITENED)
+      {
+        lAnalyser.analyseWhitened(mResults[lii]);
+      }
+      else if (mResumeFrom == Stage.BANDWISE)
+      {
+        lAnalyser.analyseBandwise(mResults[lii]);
+      }
+      else if (mFrames != null)
+      {
+        lAnalyser.analyse(mFrames[lii], mResults[lii]);
+      }
+      else
+      {
+        lAnalyser.analyse(mFloatFrames[lii], mResults[lii]);
+      }
+    }
+  }
+
+  /**
+   * Fork/join task covering a range of frames in the current batch.
+   */
+  @SuppressWarnings("serial")
+  private class AnalysisTask extends RecursiveAction
+  {
+    private final int mStart;
+    private final int mEnd;
+
+    public AnalysisTask(int xiStart, int xiEnd)
+    {
+      mStart = xiStart;
+      mEnd = xiEnd;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if ((mEnd - mStart) <= mRunLength)
+      {
+        analyse(mStart, mEnd);
+      }
+      else
+      {
+        final int lMiddle = (mStart + mEnd) / 2;
+        invokeAll(new AnalysisTask(mStart, lMiddle),
+                  new AnalysisTask(lMiddle, mEnd));
+      }
+    }
+  }
+}
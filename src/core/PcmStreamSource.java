@@ -0,0 +1,108 @@
+package core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A source of samples read from a stream of raw PCM audio - 16-bit signed,
+ * little-endian, mono - such as a sound card line, a pipe or a socket.
+ *
+ * Samples are scaled to [-1, 1) as for a 16-bit wave file.
+ */
+public class PcmStreamSource implements SampleSource, Closeable
+{
+  private final InputStream mStream;
+  private final byte[] mBytes;
+
+  // Number of bytes held in mBytes: between reads, those of an incomplete
+  // sample.
+  private int mPending;
+
+  /**
+   * Create a PCM stream source.
+   *
+   * @param xiStream - the stream.
+   * @param xiMaxSamples - the maximum number of samples to read at a time.
+   */
+  public PcmStreamSource(InputStream xiStream, int xiMaxSamples)
+  {
+    mStream = xiStream;
+    mBytes = new byte[xiMaxSamples * 2];
+  }
+
+  @Override
+  public int read(double[] xoBuffer, int xiOffset, int xiLength)
+    throws IOException
+  {
+    final int lSamples = readBytes(xiLength);
+    for (int lii = 0; lii < lSamples; lii++)
+    {
+      xoBuffer[xiOffset + lii] = sample(lii) / 32768.0;
+    }
+    keepPending(lSamples);
+    return lSamples;
+  }
+
+  @Override
+  public int read(float[] xoBuffer, int xiOffset, int xiLength)
+    throws IOException
+  {
+    final int lSamples = readBytes(xiLength);
+    for (int lii = 0; lii < lSamples; lii++)
+    {
+      xoBuffer[xiOffset + lii] = sample(lii) / 32768.0f;
+    }
+    keepPending(lSamples);
+    return lSamples;
+  }
+
+  /**
+   * Read bytes into mBytes, blocking until there is at least one whole
+   * sample.
+   *
+   * @return the number of whole samples read, or 0 at the end of the stream.
+   */
+  private int readBytes(int xiMaxSamples) throws IOException
+  {
+    final int lWanted = Math.min(xiMaxSamples, mBytes.length / 2) * 2;
+    int lHave = mPending;
+    while (lHave < 2)
+    {
+      final int lRead = mStream.read(mBytes, lHave, lWanted - lHave);
+      if (lRead < 0)
+      {
+        return 0;
+      }
+      lHave += lRead;
+    }
+    mPending = lHave;
+    return lHave / 2;
+  }
+
+  /**
+   * @return the sample at the given index in mBytes.
+   */
+  private int sample(int xiIndex)
+  {
+    return (mBytes[2 * xiIndex] & 0xFF) | (mBytes[(2 * xiIndex) + 1] << 8);
+  }
+
+  /**
+   * Keep any odd byte, following the samples just decoded, for next time.
+   */
+  private void keepPending(int xiSamples)
+  {
+    mPending -= xiSamples * 2;
+    if (mPending > 0)
+    {
+      mBytes[0] = mBytes[xiSamples * 2];
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    mStream.close();
+  }
+}
@@ -0,0 +1,179 @@
+package core;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-stage timings and counters for the F0 estimation pipeline.
+ *
+ * Metrics are off unless the system property f0.metrics is set to true.
+ * {@link #ENABLED} is a compile-time-style constant, so when metrics are off
+ * the JIT removes the instrumentation from the hot loop entirely.  Callers
+ * should therefore always guard instrumentation with it:
+ *
+ * <pre>
+ *   final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+ *   ...
+ *   if (PipelineMetrics.ENABLED) PipelineMetrics.FFT.record(System.nanoTime() - lStart);
+ * </pre>
+ *
+ * When enabled, the metrics are registered as MBeans (under "core:type=...")
+ * and, if the system property f0.metrics.dumpSeconds is set, a summary is
+ * printed to stderr at that interval.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean
+{
+  /**
+   * Whether metrics are being gathered.
+   */
+  public static final boolean ENABLED = Boolean.getBoolean("f0.metrics");
+
+  // Per-stage timers.
+  public static final StageTimer READ = new StageTimer("read");
+  public static final StageTimer WINDOW = new StageTimer("window");
+  public static final StageTimer FFT = new StageTimer("fft");
+  public static final StageTimer WHITEN = new StageTimer("whiten");
+  public static final StageTimer BANDWISE_WEIGHTS = new StageTimer("bandwiseWeights");
+  public static final StageTimer GLOBAL_WEIGHTS = new StageTimer("globalWeights");
+  public static final StageTimer POLYPHONY = new StageTimer("polyphony");
+
+  private static final StageTimer[] STAGES =
+     {READ, WINDOW, FFT, WHITEN, BANDWISE_WEIGHTS, GLOBAL_WEIGHTS, POLYPHONY};
+
+  /**
+   * The singleton instance (registered with JMX).
+   */
+  public static final PipelineMetrics INSTANCE = new PipelineMetrics();
+
+  private final AtomicLong mFramesProcessed = new AtomicLong();
+  private final AtomicLong mAudioMicrosProcessed = new AtomicLong();
+  private final AtomicLong mFirstFrameNanos = new AtomicLong();
+
+  static
+  {
+    if (ENABLED)
+    {
+      register();
+      startDump();
+    }
+  }
+
+  private PipelineMetrics()
+  {
+    // Singleton
+  }
+
+  /**
+   * Record that a frame has been analysed.
+   *
+   * @param xiAudioMicros - the duration (in microseconds) of new audio
+   * covered by the frame - i.e. the step size.
+   */
+  public void frameProcessed(long xiAudioMicros)
+  {
+    mFirstFrameNanos.compareAndSet(0, System.nanoTime());
+    mFramesProcessed.incrementAndGet();
+    mAudioMicrosProcessed.addAndGet(xiAudioMicros);
+  }
+
+  @Override
+  public long getFramesProcessed()
+  {
+    return mFramesProcessed.get();
+  }
+
+  @Override
+  public double getAudioSecondsProcessed()
+  {
+    return mAudioMicrosProcessed.get() / 1e6;
+  }
+
+  @Override
+  public double getRealTimeFactor()
+  {
+    final long lFirst = mFirstFrameNanos.get();
+    if (lFirst == 0)
+    {
+      return 0;
+    }
+    final double lElapsed = (System.nanoTime() - lFirst) / 1e9;
+    return (lElapsed > 0) ? getAudioSecondsProcessed() / lElapsed : 0;
+  }
+
+  @Override
+  public String getSummary()
+  {
+    final StringBuilder lSummary = new StringBuilder();
+    lSummary.append(String.format(Locale.ROOT,
+                                  "frames=%d audio=%.1fs realTimeFactor=%.1fx%n",
+                                  getFramesProcessed(),
+                                  getAudioSecondsProcessed(),
+                                  getRealTimeFactor()));
+    for (final StageTimer lStage : STAGES)
+    {
+      lSummary.append(lStage).append(String.format(Locale.ROOT, "%n"));
+    }
+    return lSummary.toString();
+  }
+
+  @Override
+  public void reset()
+  {
+    for (final StageTimer lStage : STAGES)
+    {
+      lStage.reset();
+    }
+    mFramesProcessed.set(0);
+    mAudioMicrosProcessed.set(0);
+    mFirstFrameNanos.set(0);
+  }
+
+  /**
+   * Register the metrics with the platform MBean server.
+   */
+  private static void register()
+  {
+    try
+    {
+      final MBeanServer lServer = ManagementFactory.getPlatformMBeanServer();
+      lServer.registerMBean(INSTANCE,
+                            new ObjectName("core:type=PipelineMetrics"));
+      for (final StageTimer lStage : STAGES)
+      {
+        lServer.registerMBean(lStage,
+                              new ObjectName("core:type=StageTimer,name=" +
+                                             lStage.getName()));
+      }
+    }
+    catch (final JMException lEx)
+    {
+      System.err.println("Failed to register pipeline metrics: " + lEx);
+    }
+  }
+
+  /**
+   * Start the periodic dump of metrics, if requested.
+   */
+  private static void startDump()
+  {
+    final long lSeconds = Long.getLong("f0.metrics.dumpSeconds", 0);
+    if (lSeconds > 0)
+    {
+      new Timer("PipelineMetrics", true).schedule(new TimerTask()
+      {
+        @Override
+        public void run()
+        {
+          System.err.print(INSTANCE.getSummary());
+        }
+      }, lSeconds * 1000, lSeconds * 1000);
+    }
+  }
+}
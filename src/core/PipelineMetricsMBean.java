@@ -0,0 +1,33 @@
+package core;
+
+/**
+ * JMX view of the {@link PipelineMetrics}.
+ */
+public interface PipelineMetricsMBean
+{
+  /**
+   * @return the number of frames analysed.
+   */
+  long getFramesProcessed();
+
+  /**
+   * @return the number of seconds of audio analysed.
+   */
+  double getAudioSecondsProcessed();
+
+  /**
+   * @return the real-time factor - seconds of audio analysed per second of
+   * elapsed time since the first frame was analysed.
+   */
+  double getRealTimeFactor();
+
+  /**
+   * @return a text summary of all the metrics.
+   */
+  String getSummary();
+
+  /**
+   * Discard all metrics.
+   */
+  void reset();
+}
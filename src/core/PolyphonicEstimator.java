@@ -0,0 +1,277 @@
+package core;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Estimates multiple simultaneous F0s by iterative estimation and
+ * cancellation, as per [Klapuri2005].
+ *
+ * Each iteration takes the F0 with the greatest global weight in a working
+ * copy of the whitened spectrum, and then cancels its harmonics from the
+ * working spectrum.  The amplitude removed at each harmonic is limited by the
+ * amplitudes of its neighbours (the spectral smoothness principle), so that
+ * partials shared with other sounds aren't removed entirely.
+ *
+ * Cancellation only touches the bins around the harmonics of the detected F0,
+ * so the bandwise weights of the previous iteration are kept and only the
+ * bands containing a cancelled bin are recalculated.  The first iteration
+ * uses the weights of the whitened spectrum itself, which have already been
+ * calculated.
+ *
+ * Iteration stops when the polyphony estimate
+ *   S(j) = (L(1) + ... + L(j)) / j^POLYPHONY_EXPONENT,
+ * where L(i) is the weight of the i-th F0 detected, no longer increases, or
+ * after MAX_POLYPHONY F0s (f0.maxPolyphony, 6 by default), which bounds the
+ * time taken for each frame.
+ *
+ * An estimator holds a working spectrum and weights so may only be used by
+ * one thread at a time.  The weight calculator may be shared.
+ */
+public class PolyphonicEstimator
+{
+  /**
+   * The maximum number of F0s detected in a frame.
+   */
+  public static final int MAX_POLYPHONY =
+                                Integer.getInteger("f0.maxPolyphony", 6);
+
+  /**
+   * The exponent in the polyphony estimate.
+   */
+  private static final double POLYPHONY_EXPONENT = 0.7;
+
+  private final AudioDescriptor mDescriptor;
+  private final KlapuriWeightCalculator mWeightCalculator;
+
+  // One past the highest bin that affects the weights.
+  private final int mEndBin;
+
+  // The bands containing each bin are mFirstBand[bin] to mLastBand[bin]
+  // (inclusive).  Bins in no band have mFirstBand > mLastBand.
+  private final int[] mFirstBand;
+  private final int[] mLastBand;
+
+  // The working spectrum, and its weights.  Bandwise weights are replaced
+  // (never modified) when recalculated, so the caller's aren't changed.
+  private final double[] mWorking;
+  private final double[][] mBandWeights;
+  private final boolean[] mDirty;
+
+  // The peak bin and amplitude of each harmonic of the F0 being cancelled.
+  private final int[] mPeakBin;
+  private final double[] mPeakAmplitude;
+
+  /**
+   * Create a polyphonic estimator.
+   *
+   * @param xiDescriptor - description of the audio data.
+   * @param xiWeightCalculator - the weight calculator.
+   */
+  public PolyphonicEstimator(AudioDescriptor xiDescriptor,
+                             KlapuriWeightCalculator xiWeightCalculator)
+  {
+    mDescriptor = xiDescriptor;
+    mWeightCalculator = xiWeightCalculator;
+    mEndBin = Math.min(xiDescriptor.mNumBins, xiWeightCalculator.getEndBin());
+
+    final int lNumBands = xiWeightCalculator.getNumBands();
+    mFirstBand = new int[mEndBin];
+    mLastBand = new int[mEndBin];
+    for (int lBin = 0; lBin < mEndBin; lBin++)
+    {
+      mFirstBand[lBin] = lNumBands;
+      mLastBand[lBin] = -1;
+    }
+    for (int lBand = 0; lBand < lNumBands; lBand++)
+    {
+      final int lEnd = Math.min(mEndBin, xiWeightCalculator.getBandEnd(lBand));
+      for (int lBin = xiWeightCalculator.getBandStart(lBand); lBin < lEnd; lBin++)
+      {
+        mFirstBand[lBin] = Math.min(mFirstBand[lBin], lBand);
+        mLastBand[lBin] = Math.max(mLastBand[lBin], lBand);
+      }
+    }
+
+    mWorking = new double[xiDescriptor.mNumBins];
+    mBandWeights = new double[lNumBands][];
+    mDirty = new boolean[lNumBands];
+
+    final int lMaxHarmonics = (mEndBin / xiDescriptor.mMinFreqIndex) + 1;
+    mPeakBin = new int[lMaxHarmonics];
+    mPeakAmplitude = new double[lMaxHarmonics];
+  }
+
+  /**
+   * Estimate the F0s in a frame.
+   *
+   * @param xiWhitened - the whitened spectrum.  It isn't modified.
+   * @param xiBandwiseWeights - its bandwise weights.  They aren't modified.
+   * @param xiGlobalWeights - its global weights.
+   * @param xoF0Indices - array (of at least MAX_POLYPHONY elements) to receive
+   * the bin of each F0, in the order detected.
+   * @param xoF0Weights - array (of at least MAX_POLYPHONY elements) to receive
+   * the weight of each F0 when it was detected.
+   * @return the number of F0s detected.
+   */
+  public int estimate(double[] xiWhitened,
+                      double[][] xiBandwiseWeights,
+                      double[] xiGlobalWeights,
+                      int[] xoF0Indices,
+                      double[] xoF0Weights)
+  {
+    System.arraycopy(xiWhitened, 0, mWorking, 0, mEndBin);
+    System.arraycopy(xiBandwiseWeights, 0, mBandWeights, 0, mBandWeights.length);
+
+    double[] lGlobalWeights = xiGlobalWeights;
+    double lTotalSalience = 0;
+    double lLastEstimate = 0;
+    int lNumF0s = 0;
+    while (lNumF0s < MAX_POLYPHONY)
+    {
+      // Find the strongest F0 not already detected.
+      final int lF0 = strongest(lGlobalWeights, xoF0Indices, lNumF0s);
+      if (lF0 < 0)
+      {
+        break;
+      }
+
+      // Stop once the polyphony estimate stops increasing.
+      lTotalSalience += lGlobalWeights[lF0];
+      final double lEstimate =
+                 lTotalSalience / Math.pow(lNumF0s + 1, POLYPHONY_EXPONENT);
+      if (lEstimate <= lLastEstimate)
+      {
+        break;
+      }
+      lLastEstimate = lEstimate;
+      xoF0Indices[lNumF0s] = lF0;
+      xoF0Weights[lNumF0s] = lGlobalWeights[lF0];
+      lNumF0s++;
+
+      if (lNumF0s < MAX_POLYPHONY)
+      {
+        // Cancel the F0 and recalculate the weights of the bands affected.
+        cancel(lF0);
+        for (int lBand = 0; lBand < mDirty.length; lBand++)
+        {
+          if (mDirty[lBand])
+          {
+            mBandWeights[lBand] =
+                       mWeightCalculator.calculateBandWeights(mWorking, lBand);
+            mDirty[lBand] = false;
+          }
+        }
+        lGlobalWeights = mWeightCalculator.calculateGlobalWeights(mBandWeights);
+      }
+    }
+
+    return lNumF0s;
+  }
+
+  /**
+   * @return the bin of the candidate with the greatest (positive) global
+   * weight, ignoring those adjacent to an F0 already detected, or -1 if there
+   * is none.
+   */
+  private int strongest(double[] xiGlobalWeights,
+                        int[] xiDetected,
+                        int xiNumDetected)
+  {
+    int lBest = -1;
+    double lBestWeight = 0;
+    for (int lii = mDescriptor.mMinFreqIndex;
+         lii <= Math.min(mDescriptor.mMaxFreqIndex, xiGlobalWeights.length - 1);
+         lii++)
+    {
+      if ((xiGlobalWeights[lii] > lBestWeight) &&
+          !isDetected(lii, xiDetected, xiNumDetected))
+      {
+        lBest = lii;
+        lBestWeight = xiGlobalWeights[lii];
+      }
+    }
+    return lBest;
+  }
+
+  private static boolean isDetected(int xiIndex, int[] xiDetected, int xiNumDetected)
+  {
+    for (int lii = 0; lii < xiNumDetected; lii++)
+    {
+      if (Math.abs(xiDetected[lii] - xiIndex) <= 1)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Cancel the harmonics of an F0 from the working spectrum, marking the bands
+   * affected as dirty.
+   *
+   * @param xiF0 - the bin of the F0.
+   */
+  private void cancel(int xiF0)
+  {
+    // Find the peak near each harmonic, allowing for inharmonicity as per (5)
+    // in [Klapuri2005].
+    int lNumHarmonics = 0;
+    for (int h = 1; (h * xiF0) < mEndBin; h++)
+    {
+      final int lNominal = h * xiF0;
+      final int lSpread = Math.min(Math.max(1, xiF0 / 4),
+                                   1 + (int)(lNominal *
+                                       (Math.sqrt(1.0 + (0.01 * ((h * h) - 1))) - 1.0)));
+      int lPeak = lNominal;
+      for (int lBin = Math.max(0, lNominal - lSpread);
+           lBin <= Math.min(mEndBin - 1, lNominal + lSpread);
+           lBin++)
+      {
+        if (mWorking[lBin] > mWorking[lPeak])
+        {
+          lPeak = lBin;
+        }
+      }
+      mPeakBin[lNumHarmonics] = lPeak;
+      mPeakAmplitude[lNumHarmonics] = mWorking[lPeak];
+      lNumHarmonics++;
+    }
+
+    // Remove each harmonic, limited to the mean of it and its neighbours.
+    for (int lii = 0; lii < lNumHarmonics; lii++)
+    {
+      final double lAmplitude = mPeakAmplitude[lii];
+      if (lAmplitude <= 0)
+      {
+        continue;
+      }
+
+      double lSmoothed = lAmplitude;
+      int lCount = 1;
+      if (lii > 0)
+      {
+        lSmoothed += mPeakAmplitude[lii - 1];
+        lCount++;
+      }
+      if (lii < (lNumHarmonics - 1))
+      {
+        lSmoothed += mPeakAmplitude[lii + 1];
+        lCount++;
+      }
+      lSmoothed = Math.min(lAmplitude, lSmoothed / lCount);
+
+      final double lScale = 1.0 - (lSmoothed / lAmplitude);
+      final int lPeak = mPeakBin[lii];
+      for (int lBin = Math.max(0, lPeak - 1);
+           lBin <= Math.min(mEndBin - 1, lPeak + 1);
+           lBin++)
+      {
+        mWorking[lBin] *= lScale;
+        for (int lBand = mFirstBand[lBin]; lBand <= mLastBand[lBin]; lBand++)
+        {
+          mDirty[lBand] = true;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package core;
+
+/**
+ * Fast Fourier transform of real-valued input.
+ *
+ * The N real samples are packed into N/2 complex values, transformed with a
+ * radix-2 complex FFT and then split into the N/2 + 1 non-redundant bins of
+ * the real spectrum.  All tables are computed up front and no memory is
+ * allocated per transform.  The tables are shared between all transforms of
+ * the same size (see {@link TableCache}).
+ *
+ * Transforms may be done in double or single precision.  The single-precision
+ * form has its own tables and scratch space, so moves half the data.
+ *
+ * Instances hold scratch space and are therefore not thread-safe.
+ */
+public class RealFFT
+{
+  private final int mHalfSize;
+
+  // Bit-reversal permutation and twiddles (shared between instances).
+  private final int[] mBitReverse;
+  private final double[] mCos;
+  private final double[] mSin;
+  private final double[] mSplitCos;
+  private final double[] mSplitSin;
+  private final float[] mFloatCos;
+  private final float[] mFloatSin;
+  private final float[] mFloatSplitCos;
+  private final float[] mFloatSplitSin;
+
+  // Scratch space for the half-size complex FFT.
+  private final double[] mRe;
+  private final double[] mIm;
+  private final float[] mFloatRe;
+  private final float[] mFloatIm;
+
+  /**
+   * The immutable tables for an FFT size, shared between all transforms of
+   * that size through {@link TableCache}.
+   */
+  static final class Tables
+  {
+    // Bit-reversal permutation for the half-size complex FFT.
+    final int[] mBitReverse;
+
+    // Twiddles for the half-size complex FFT: e^(-2 pi i k / (N/2)).
+    final double[] mCos;
+    final double[] mSin;
+
+    // Twiddles for splitting the half-size result: e^(-2 pi i k / N).
+    final double[] mSplitCos;
+    final double[] mSplitSin;
+
+    // Single-precision copies of the above.
+    final float[] mFloatCos;
+    final float[] mFloatSin;
+    final float[] mFloatSplitCos;
+    final float[] mFloatSplitSin;
+
+    Tables(int xiSize)
+    {
+      final int lHalfSize = xiSize / 2;
+      final int lBits = Integer.numberOfTrailingZeros(lHalfSize);
+      mBitReverse = new int[lHalfSize];
+      for (int lii = 0; lii < lHalfSize; lii++)
+      {
+        mBitReverse[lii] = Integer.reverse(lii) >>> (32 - lBits);
+      }
+
+      mCos = new double[lHalfSize / 2];
+      mSin = new double[lHalfSize / 2];
+      for (int lii = 0; lii < mCos.length; lii++)
+      {
+        mCos[lii] = Math.cos((2 * Math.PI * lii) / lHalfSize);
+        mSin[lii] = Math.sin((2 * Math.PI * lii) / lHalfSize);
+      }
+
+      mSplitCos = new double[lHalfSize + 1];
+      mSplitSin = new double[lHalfSize + 1];
+      for (int lii = 0; lii <= lHalfSize; lii++)
+      {
+        mSplitCos[lii] = Math.cos((2 * Math.PI * lii) / xiSize);
+        mSplitSin[lii] = Math.sin((2 * Math.PI * lii) / xiSize);
+      }
+
+      mFloatCos = toFloat(mCos);
+      mFloatSin = toFloat(mSin);
+      mFloatSplitCos = toFloat(mSplitCos);
+      mFloatSplitSin = toFloat(mSplitSin);
+    }
+  }
+
+  /**
+   * Create a real FFT.
+   *
+   * @param xiSize - the number of real samples to transform.  Must be a power
+   * of 2 (and at least 4).
+   */
+  public RealFFT(int xiSize)
+  {
+    if ((xiSize < 4) || (Integer.bitCount(xiSize) != 1))
+    {
+      throw new IllegalArgumentException("FFT size must be a power of 2: " +
+                                         xiSize);
+    }
+
+    mHalfSize = xiSize / 2;
+
+    final Tables lTables = TableCache.getFFTTables(xiSize);
+    mBitReverse = lTables.mBitReverse;
+    mCos = lTables.mCos;
+    mSin = lTables.mSin;
+    mSplitCos = lTables.mSplitCos;
+    mSplitSin = lTables.mSplitSin;
+    mFloatCos = lTables.mFloatCos;
+    mFloatSin = lTables.mFloatSin;
+    mFloatSplitCos = lTables.mFloatSplitCos;
+    mFloatSplitSin = lTables.mFloatSplitSin;
+
+    mRe = new double[mHalfSize];
+    mIm = new double[mHalfSize];
+    mFloatRe = new float[mHalfSize];
+    mFloatIm = new float[mHalfSize];
+  }
+
+  private static float[] toFloat(double[] xiValues)
+  {
+    final float[] lValues = new float[xiValues.length];
+    for (int lii = 0; lii < xiValues.length; lii++)
+    {
+      lValues[lii] = (float)xiValues[lii];
+    }
+    return lValues;
+  }
+
+  /**
+   * @return the number of bins produced by {@link #transform}.
+   */
+  public int getNumBins()
+  {
+    return mHalfSize + 1;
+  }
+
+  /**
+   * Perform a forward transform.
+   *
+   * @param xiSamples - the real-valued input (of the FFT size).
+   * @param xoRe - array (of at least {@link #getNumBins()}) to receive the
+   * real part of bins 0..N/2.
+   * @param xoIm - array (of at least {@link #getNumBins()}) to receive the
+   * imaginary part of bins 0..N/2.
+   */
+  public void transform(double[] xiSamples, double[] xoRe, double[] xoIm)
+  {
+    // Pack even samples into the real part and odd samples into the imaginary
+    // part, in bit-reversed order.
+    for (int lii = 0; lii < mHalfSize; lii++)
+    {
+      final int lSource = mBitReverse[lii] * 2;
+      mRe[lii] = xiSamples[lSource];
+      mIm[lii] = xiSamples[lSource + 1];
+    }
+
+    // Half-size complex FFT.
+    for (int lBlockSize = 2; lBlockSize <= mHalfSize; lBlockSize *= 2)
+    {
+      final int lHalfBlock = lBlockSize / 2;
+      final int lTableStep = mHalfSize / lBlockSize;
+      for (int lBlock = 0; lBlock < mHalfSize; lBlock += lBlockSize)
+      {
+        for (int lii = 0, lTable = 0; lii < lHalfBlock; lii++, lTable += lTableStep)
+        {
+          final int lTop = lBlock + lii;
+          final int lBottom = lTop + lHalfBlock;
+          final double lRe = (mRe[lBottom] * mCos[lTable]) +
+                             (mIm[lBottom] * mSin[lTable]);
+          final double lIm = (mIm[lBottom] * mCos[lTable]) -
+                             (mRe[lBottom] * mSin[lTable]);
+          mRe[lBottom] = mRe[lTop] - lRe;
+          mIm[lBottom] = mIm[lTop] - lIm;
+          mRe[lTop] += lRe;
+          mIm[lTop] += lIm;
+        }
+      }
+    }
+
+    // Split into the spectrum of the real input.  For Z = FFT(z), the even
+    // and odd sample spectra are E(k) = (Z(k) + Z*(M-k)) / 2 and
+    // O(k) = (Z(k) - Z*(M-k)) / 2i, and X(k) = E(k) + e^(-2 pi i k / N) O(k).
+    for (int lii = 0; lii <= mHalfSize; lii++)
+    {
+      final int lForward = (lii == mHalfSize) ? 0 : lii;
+      final int lReverse = (lii == 0) ? 0 : mHalfSize - lii;
+
+      final double lEvenRe = (mRe[lForward] + mRe[lReverse]) * 0.5;
+      final double lEvenIm = (mIm[lForward] - mIm[lReverse]) * 0.5;
+      final double lOddRe = (mIm[lForward] + mIm[lReverse]) * 0.5;
+      final double lOddIm = (mRe[lReverse] - mRe[lForward]) * 0.5;
+
+      xoRe[lii] = lEvenRe + (mSplitCos[lii] * lOddRe) +
+                            (mSplitSin[lii] * lOddIm);
+      xoIm[lii] = lEvenIm + (mSplitCos[lii] * lOddIm) -
+                            (mSplitSin[lii] * lOddRe);
+    }
+  }
+
+  /**
+   * Perform a forward transform in single precision.
+   *
+   * @param xiSamples - the real-valued input (of the FFT size).
+   * @param xoRe - array (of at least {@link #getNumBins()}) to receive the
+   * real part of bins 0..N/2.
+   * @param xoIm - array (of at least {@link #getNumBins()}) to receive the
+   * imaginary part of bins 0..N/2.
+   */
+  public void transform(float[] xiSamples, float[] xoRe, float[] xoIm)
+  {
+    final float[] lRe = mFloatRe;
+    final float[] lIm = mFloatIm;
+    for (int lii = 0; lii < mHalfSize; lii++)
+    {
+      final int lSource = mBitReverse[lii] * 2;
+      lRe[lii] = xiSamples[lSource];
+      lIm[lii] = xiSamples[lSource + 1];
+    }
+
+    for (int lBlockSize = 2; lBlockSize <= mHalfSize; lBlockSize *= 2)
+    {
+      final int lHalfBlock = lBlockSize / 2;
+      final int lTableStep = mHalfSize / lBlockSize;
+      for (int lBlock = 0; lBlock < mHalfSize; lBlock += lBlockSize)
+      {
+        for (int lii = 0, lTable = 0; lii < lHalfBlock; lii++, lTable += lTableStep)
+        {
+          final int lTop = lBlock + lii;
+          final int lBottom = lTop + lHalfBlock;
+          final float lTwiddledRe = (lRe[lBottom] * mFloatCos[lTable]) +
+                                    (lIm[lBottom] * mFloatSin[lTable]);
+          final float lTwiddledIm = (lIm[lBottom] * mFloatCos[lTable]) -
+                                    (lRe[lBottom] * mFloatSin[lTable]);
+          lRe[lBottom] = lRe[lTop] - lTwiddledRe;
+          lIm[lBottom] = lIm[lTop] - lTwiddledIm;
+          lRe[lTop] += lTwiddledRe;
+          lIm[lTop] += lTwiddledIm;
+        }
+      }
+    }
+
+    for (int lii = 0; lii <= mHalfSize; lii++)
+    {
+      final int lForward = (lii == mHalfSize) ? 0 : lii;
+      final int lReverse = (lii == 0) ? 0 : mHalfSize - lii;
+
+      final float lEvenRe = (lRe[lForward] + lRe[lReverse]) * 0.5f;
+      final float lEvenIm = (lIm[lForward] - lIm[lReverse]) * 0.5f;
+      final float lOddRe = (lIm[lForward] + lIm[lReverse]) * 0.5f;
+      final float lOddIm = (lRe[lReverse] - lRe[lForward]) * 0.5f;
+
+      xoRe[lii] = lEvenRe + (mFloatSplitCos[lii] * lOddRe) +
+                            (mFloatSplitSin[lii] * lOddIm);
+      xoIm[lii] = lEvenIm + (mFloatSplitCos[lii] * lOddIm) -
+                            (mFloatSplitSin[lii] * lOddRe);
+    }
+  }
+}
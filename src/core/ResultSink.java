@@ -0,0 +1,30 @@
+package core;
+
+import java.io.IOException;
+
+/**
+ * Receiver of the results of F0 estimation.
+ *
+ * Sinks are registered with an {@link F0Estimator}, which publishes the
+ * analysis of every frame to each sink in time order.
+ */
+public interface ResultSink
+{
+  /**
+   * Receive the analysis of a frame.
+   *
+   * The analysis is only valid for the duration of the call.  Sinks that need
+   * to retain any of it must take a copy.
+   *
+   * @param xiFrame - the analysis.
+   * @throws IOException if the sink can't record the analysis.
+   */
+  void addFrame(FrameAnalysis xiFrame) throws IOException;
+
+  /**
+   * Called once all frames have been published (or processing has failed).
+   *
+   * @throws IOException if the sink can't be closed.
+   */
+  void close() throws IOException;
+}
@@ -0,0 +1,42 @@
+package core;
+
+import java.io.IOException;
+
+import core.WavFile.WavFileException;
+
+/**
+ * A source of (mono) samples, such as a wave file or a live input.
+ */
+public interface SampleSource
+{
+  /**
+   * Read samples, blocking until at least one is available.
+   *
+   * @param xoBuffer - buffer to receive the samples.
+   * @param xiOffset - offset in the buffer of the first sample.
+   * @param xiLength - the maximum number of samples to read.
+   *
+   * @return the number of samples read, or 0 at the end of the source.
+   *
+   * @throws IOException if the source can't be read.
+   * @throws WavFileException if the source is malformed.
+   */
+  int read(double[] xoBuffer, int xiOffset, int xiLength)
+    throws IOException, WavFileException;
+
+  /**
+   * Read samples in single precision, blocking until at least one is
+   * available.
+   *
+   * @param xoBuffer - buffer to receive the samples.
+   * @param xiOffset - offset in the buffer of the first sample.
+   * @param xiLength - the maximum number of samples to read.
+   *
+   * @return the number of samples read, or 0 at the end of the source.
+   *
+   * @throws IOException if the source can't be read.
+   * @throws WavFileException if the source is malformed.
+   */
+  int read(float[] xoBuffer, int xiOffset, int xiLength)
+    throws IOException, WavFileException;
+}
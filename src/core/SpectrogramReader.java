@@ -0,0 +1,258 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Reads the whitened spectra and global weights written by a
+ * {@link SpectrogramWriter}, giving random access to any frame without
+ * analysing the audio again.
+ *
+ * The file is memory-mapped, a window of whole blocks at a time (so that files
+ * larger than a single MappedByteBuffer can be read), and frames are decoded
+ * with absolute reads, so a reader may be shared between threads once open.
+ */
+public class SpectrogramReader
+{
+  // The maximum size of each mapped window.
+  private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final AnalysisProfile mProfile;
+  private final AudioDescriptor mDescriptor;
+  private final boolean mQuantised;
+  private final long mNumFrames;
+  private final int mNumBins;
+  private final int mValueSize;
+  private final int mBlockSize;
+
+  // The mapped windows, each of mBlocksPerWindow blocks.
+  private final MappedByteBuffer[] mWindows;
+  private final int mBlocksPerWindow;
+
+  /**
+   * Open a spectrogram file.
+   *
+   * @param xiFile - the file.
+   * @throws IOException if the file can't be read, or isn't a spectrogram.
+   */
+  public SpectrogramReader(File xiFile) throws IOException
+  {
+    final RandomAccessFile lFile = new RandomAccessFile(xiFile, "r");
+    try
+    {
+      final FileChannel lChannel = lFile.getChannel();
+      final ByteBuffer lHeader = ByteBuffer.allocate(SpectrogramWriter.HEADER_SIZE);
+      while (lHeader.hasRemaining() && (lChannel.read(lHeader) >= 0))
+      {
+        // Keep reading.
+      }
+      lHeader.flip();
+      if ((lHeader.remaining() < SpectrogramWriter.HEADER_SIZE) ||
+          (lHeader.getInt() != SpectrogramWriter.MAGIC))
+      {
+        throw new IOException(xiFile + " is not a spectrogram file");
+      }
+      final int lVersion = lHeader.getInt();
+      if (lVersion != SpectrogramWriter.VERSION)
+      {
+        throw new IOException(xiFile + " is version " + lVersion +
+                              " (expected " + SpectrogramWriter.VERSION + ")");
+      }
+      final int lSampleRate = lHeader.getInt();
+      final int lFrameSize = lHeader.getInt();
+      final double lStepMs = lHeader.getDouble();
+      final int lMinFreq = lHeader.getInt();
+      final int lMaxFreq = lHeader.getInt();
+      mQuantised = (lHeader.getInt() != 0);
+      lHeader.getInt();
+      mNumFrames = lHeader.getLong();
+
+      mProfile = new AnalysisProfile(xiFile.getName(),
+                                     lFrameSize,
+                                     lStepMs,
+                                     lMinFreq,
+                                     lMaxFreq,
+                                     false);
+      mDescriptor = mProfile.describe(lSampleRate);
+      mNumBins = SpectrogramWriter.numBins(mDescriptor);
+      mValueSize = mQuantised ? 2 : 4;
+      mBlockSize = SpectrogramWriter.blockSize(mDescriptor, mQuantised);
+
+      // Map the blocks.
+      final long lNumBlocks = (mNumFrames + SpectrogramWriter.BLOCK_FRAMES - 1) /
+                                                 SpectrogramWriter.BLOCK_FRAMES;
+      if (lChannel.size() < SpectrogramWriter.HEADER_SIZE + (lNumBlocks * mBlockSize))
+      {
+        throw new IOException(xiFile + " is truncated");
+      }
+      mBlocksPerWindow = Math.max(1, MAP_WINDOW_SIZE / mBlockSize);
+      mWindows = new MappedByteBuffer[(int)((lNumBlocks + mBlocksPerWindow - 1) /
+                                                          mBlocksPerWindow)];
+      for (int lii = 0; lii < mWindows.length; lii++)
+      {
+        final long lFirstBlock = (long)lii * mBlocksPerWindow;
+        final long lBlocks = Math.min(mBlocksPerWindow, lNumBlocks - lFirstBlock);
+        mWindows[lii] = lChannel.map(FileChannel.MapMode.READ_ONLY,
+                                     SpectrogramWriter.HEADER_SIZE +
+                                                 (lFirstBlock * mBlockSize),
+                                     lBlocks * mBlockSize);
+      }
+    }
+    finally
+    {
+      // The mappings remain valid once the file is closed.
+      lFile.close();
+    }
+  }
+
+  /**
+   * @return the profile with which the spectrogram was analysed.  (The
+   * precision isn't recorded.)
+   */
+  public AnalysisProfile getProfile()
+  {
+    return mProfile;
+  }
+
+  /**
+   * @return the description of the audio.
+   */
+  public AudioDescriptor getAudioDescriptor()
+  {
+    return mDescriptor;
+  }
+
+  /**
+   * @return whether values are quantised to 16 bits.
+   */
+  public boolean isQuantised()
+  {
+    return mQuantised;
+  }
+
+  /**
+   * @return the number of frames.
+   */
+  public long getNumFrames()
+  {
+    return mNumFrames;
+  }
+
+  /**
+   * @param xiFrame - the index of a frame.
+   * @return the offset (in samples) of the start of the frame.
+   */
+  public long getOffset(long xiFrame)
+  {
+    checkFrame(xiFrame);
+    return window(xiFrame).getLong(blockStart(xiFrame) + (frameInBlock(xiFrame) * 8));
+  }
+
+  /**
+   * Read the whitened spectrum of a frame.
+   *
+   * @param xiFrame - the index of the frame.
+   * @param xoWhitened - array (of at least mMaxFreqIndex + 1 elements) to
+   * receive the spectrum.  Bins outside mMinFreqIndex to mMaxFreqIndex are
+   * left unchanged.
+   */
+  public void readWhitened(long xiFrame, double[] xoWhitened)
+  {
+    readValues(xiFrame, 0, xoWhitened);
+  }
+
+  /**
+   * Read the global weights of a frame.
+   *
+   * @param xiFrame - the index of the frame.
+   * @param xoWeights - array (of at least mMaxFreqIndex + 1 elements) to
+   * receive the weights.  Bins outside mMinFreqIndex to mMaxFreqIndex are
+   * left unchanged.
+   */
+  public void readGlobalWeights(long xiFrame, double[] xoWeights)
+  {
+    readValues(xiFrame, 1, xoWeights);
+  }
+
+  /**
+   * Read a frame into an analysis, as though it had just been analysed.  The
+   * bandwise weights aren't stored, so are set to null.
+   *
+   * @param xiFrame - the index of the frame.
+   * @param xoResult - the analysis.  Its global weights are replaced if they
+   * are too short.
+   */
+  public void readFrame(long xiFrame, FrameAnalysis xoResult)
+  {
+    xoResult.mOffset = getOffset(xiFrame);
+    readWhitened(xiFrame, xoResult.mWhitened);
+    if ((xoResult.mGlobalWeights == null) ||
+        (xoResult.mGlobalWeights.length <= mDescriptor.mMaxFreqIndex))
+    {
+      xoResult.mGlobalWeights = new double[mDescriptor.mMaxFreqIndex + 1];
+    }
+    readGlobalWeights(xiFrame, xoResult.mGlobalWeights);
+    xoResult.mBandwiseWeights = null;
+    xoResult.mNumF0s = 0;
+  }
+
+  /**
+   * Read one of the value columns (0 for whitened spectra, 1 for global
+   * weights) of a frame.
+   */
+  private void readValues(long xiFrame, int xiColumn, double[] xoValues)
+  {
+    checkFrame(xiFrame);
+    final ByteBuffer lWindow = window(xiFrame);
+    final int lFrame = frameInBlock(xiFrame);
+    final int lColumn = blockStart(xiFrame) +
+                        (SpectrogramWriter.BLOCK_FRAMES * 8) +
+                        (xiColumn * SpectrogramWriter.BLOCK_FRAMES *
+                                            (4 + (mNumBins * mValueSize)));
+    final double lScale = lWindow.getFloat(lColumn + (lFrame * 4)) /
+                                               (mQuantised ? 65535.0 : 1.0);
+    final int lValues = lColumn + (SpectrogramWriter.BLOCK_FRAMES * 4) +
+                                  (lFrame * mNumBins * mValueSize);
+    final int lMin = mDescriptor.mMinFreqIndex;
+    for (int lii = 0; lii < mNumBins; lii++)
+    {
+      xoValues[lMin + lii] = mQuantised ?
+                 (lWindow.getShort(lValues + (lii * 2)) & 0xFFFF) * lScale :
+                 lWindow.getFloat(lValues + (lii * 4));
+    }
+  }
+
+  private void checkFrame(long xiFrame)
+  {
+    if ((xiFrame < 0) || (xiFrame >= mNumFrames))
+    {
+      throw new IndexOutOfBoundsException("Frame " + xiFrame + " of " + mNumFrames);
+    }
+  }
+
+  private ByteBuffer window(long xiFrame)
+  {
+    return mWindows[(int)(block(xiFrame) / mBlocksPerWindow)];
+  }
+
+  private static long block(long xiFrame)
+  {
+    return xiFrame / SpectrogramWriter.BLOCK_FRAMES;
+  }
+
+  private int blockStart(long xiFrame)
+  {
+    return (int)(block(xiFrame) % mBlocksPerWindow) * mBlockSize;
+  }
+
+  private static int frameInBlock(long xiFrame)
+  {
+    return (int)(xiFrame % SpectrogramWriter.BLOCK_FRAMES);
+  }
+}
@@ -0,0 +1,247 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Writes the whitened spectrum and global weights of every frame to a file,
+ * to be read back with a {@link SpectrogramReader}.
+ *
+ * Only the bins from mMinFreqIndex to mMaxFreqIndex are stored.  Frames are
+ * grouped into blocks of BLOCK_FRAMES, and within a block each column (frame
+ * offsets, whitened spectra and global weights) is held contiguously, so a
+ * column can be scanned without touching the others.  Every block is the same
+ * size, so any frame can be found without an index.
+ *
+ * Values are stored as floats, or optionally quantised to 16 bits, relative to
+ * the greatest value in each frame (whose scale is stored with the frame).
+ * Both whitened values and weights are non-negative, so quantisation loses
+ * nothing below 1/65535 of the greatest value in the frame.
+ *
+ * The file is written sequentially, a block at a time.  The number of frames
+ * is patched into the header when the writer is closed.
+ *
+ * Layout (big-endian):
+ * - header: MAGIC, VERSION, sample rate, frame size, step (ms, as a double),
+ *   minimum and maximum frequency (Hz), whether quantised (int), an unused
+ *   int and the number of frames (long);
+ * - blocks of BLOCK_FRAMES frames, each holding the offset of each frame
+ *   (longs), the scale of each whitened spectrum (floats), the whitened
+ *   spectra, the scale of each set of global weights (floats) and the global
+ *   weights.  The last block is padded to full size.
+ */
+public class SpectrogramWriter implements ResultSink
+{
+  /**
+   * Identifies the file format.
+   */
+  public static final int MAGIC = 0x46305350;
+
+  /**
+   * The version of the file format.
+   */
+  public static final int VERSION = 1;
+
+  /**
+   * The number of frames in each block.
+   */
+  public static final int BLOCK_FRAMES = 64;
+
+  /**
+   * The size of the header (in bytes).
+   */
+  public static final int HEADER_SIZE = 48;
+
+  // The offset of the number of frames in the header.
+  private static final int NUM_FRAMES_OFFSET = 40;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final AudioDescriptor mDescriptor;
+  private final boolean mQuantised;
+  private final int mNumBins;
+
+  // The block being filled, and the number of frames in it.
+  private final ByteBuffer mBlock;
+  private int mBlockFrames;
+
+  private long mNumFrames;
+
+  /**
+   * Create a spectrogram writer.
+   *
+   * @param xiFile - the file to write.
+   * @param xiProfile - the analysis profile.
+   * @param xiDescriptor - description of the audio data.
+   * @param xiQuantised - whether to quantise values to 16 bits.
+   * @throws IOException if the file can't be created.
+   */
+  public SpectrogramWriter(File xiFile,
+                           AnalysisProfile xiProfile,
+                           AudioDescriptor xiDescriptor,
+                           boolean xiQuantised)
+    throws IOException
+  {
+    mDescriptor = xiDescriptor;
+    mQuantised = xiQuantised;
+    mNumBins = numBins(xiDescriptor);
+    mBlock = ByteBuffer.allocate(blockSize(xiDescriptor, xiQuantised));
+
+    mFile = new RandomAccessFile(xiFile, "rw");
+    mFile.setLength(0);
+    mChannel = mFile.getChannel();
+
+    final ByteBuffer lHeader = ByteBuffer.allocate(HEADER_SIZE);
+    lHeader.putInt(MAGIC);
+    lHeader.putInt(VERSION);
+    lHeader.putInt(xiDescriptor.mSampleRate);
+    lHeader.putInt(xiProfile.mFrameSize);
+    lHeader.putDouble(xiProfile.mStepMs);
+    lHeader.putInt(xiProfile.mMinFreq);
+    lHeader.putInt(xiProfile.mMaxFreq);
+    lHeader.putInt(xiQuantised ? 1 : 0);
+    lHeader.putInt(0);
+    lHeader.putLong(0);
+    lHeader.flip();
+    write(lHeader);
+  }
+
+  /**
+   * @return the number of bins stored for each frame.
+   */
+  static int numBins(AudioDescriptor xiDescriptor)
+  {
+    return (xiDescriptor.mMaxFreqIndex + 1) - xiDescriptor.mMinFreqIndex;
+  }
+
+  /**
+   * @return the size (in bytes) of a block.
+   */
+  static int blockSize(AudioDescriptor xiDescriptor, boolean xiQuantised)
+  {
+    final int lValueSize = xiQuantised ? 2 : 4;
+    return BLOCK_FRAMES * (8 + 2 * (4 + (numBins(xiDescriptor) * lValueSize)));
+  }
+
+  @Override
+  public void addFrame(FrameAnalysis xiFrame) throws IOException
+  {
+    final int lValueSize = mQuantised ? 2 : 4;
+    final int lFrame = mBlockFrames;
+
+    // Offsets column.
+    mBlock.putLong(lFrame * 8, xiFrame.mOffset);
+
+    // Whitened spectrum columns, then global weight columns.
+    int lColumn = BLOCK_FRAMES * 8;
+    lColumn = putValues(xiFrame.mWhitened, lColumn, lFrame, lValueSize);
+    putValues(xiFrame.mGlobalWeights, lColumn, lFrame, lValueSize);
+
+    mNumFrames++;
+    if (++mBlockFrames == BLOCK_FRAMES)
+    {
+      writeBlock();
+    }
+  }
+
+  /**
+   * Store the values of a frame in the scale and value columns starting at
+   * the given position in the block.
+   *
+   * @return the position of the next column.
+   */
+  private int putValues(double[] xiValues,
+                        int xiColumn,
+                        int xiFrame,
+                        int xiValueSize)
+  {
+    final int lMin = mDescriptor.mMinFreqIndex;
+    final int lEnd = Math.min(xiValues.length, lMin + mNumBins);
+    final int lValues = xiColumn + (BLOCK_FRAMES * 4) +
+                                     (xiFrame * mNumBins * xiValueSize);
+
+    if (mQuantised)
+    {
+      double lMax = 0;
+      for (int lii = lMin; lii < lEnd; lii++)
+      {
+        lMax = Math.max(lMax, xiValues[lii]);
+      }
+      final double lScale = (lMax > 0) ? 65535 / lMax : 0;
+      mBlock.putFloat(xiColumn + (xiFrame * 4), (float)lMax);
+      for (int lii = lMin; lii < lEnd; lii++)
+      {
+        mBlock.putShort(lValues + ((lii - lMin) * 2),
+                        (short)Math.round(xiValues[lii] * lScale));
+      }
+    }
+    else
+    {
+      mBlock.putFloat(xiColumn + (xiFrame * 4), 1);
+      for (int lii = lMin; lii < lEnd; lii++)
+      {
+        mBlock.putFloat(lValues + ((lii - lMin) * 4), (float)xiValues[lii]);
+      }
+    }
+
+    // Bins beyond the end of the values are 0.
+    for (int lii = lEnd; lii < lMin + mNumBins; lii++)
+    {
+      if (mQuantised)
+      {
+        mBlock.putShort(lValues + ((lii - lMin) * 2), (short)0);
+      }
+      else
+      {
+        mBlock.putFloat(lValues + ((lii - lMin) * 4), 0);
+      }
+    }
+
+    return xiColumn + (BLOCK_FRAMES * (4 + (mNumBins * xiValueSize)));
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try
+    {
+      if (mBlockFrames > 0)
+      {
+        writeBlock();
+      }
+
+      final ByteBuffer lNumFrames = ByteBuffer.allocate(8);
+      lNumFrames.putLong(mNumFrames);
+      lNumFrames.flip();
+      mChannel.write(lNumFrames, NUM_FRAMES_OFFSET);
+    }
+    finally
+    {
+      mFile.close();
+    }
+  }
+
+  /**
+   * Write the current block (padded to full size) to the file.
+   */
+  private void writeBlock() throws IOException
+  {
+    mBlock.clear();
+    write(mBlock);
+    mBlock.clear();
+    mBlockFrames = 0;
+  }
+
+  private void write(ByteBuffer xiBuffer) throws IOException
+  {
+    while (xiBuffer.hasRemaining())
+    {
+      mChannel.write(xiBuffer);
+    }
+  }
+}
@@ -0,0 +1,705 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Persistent on-disk cache of the intermediate results of analysing a file:
+ * the magnitude spectrum, the whitened spectrum and the bandwise weights of
+ * every frame.
+ *
+ * Entries are keyed by a hash of the content of the audio file, the stage and
+ * every parameter that affects its output: the sample rate, frame size, step,
+ * frequency range, channel and precision.  (A stage's VERSION must be bumped
+ * whenever the code that produces it changes, so that stale entries are
+ * ignored.)  An analysis that has been run before can then start from the
+ * deepest stage cached - see {@link F0Estimator#setStageCache(StageCache)} -
+ * rather than transforming the audio again.
+ *
+ * Spectra are stored in single precision, and only up to the highest bin that
+ * affects the weights (see {@link FrameAnalyser#endBin}), so the bins above it
+ * read back as 0.  An entry that would be bigger than the whole cache isn't
+ * kept.
+ *
+ * Each entry is a file in the cache directory, written to a temporary file
+ * and renamed into place once complete, so entries are never seen half
+ * written.  The cache is bounded: once the entries exceed the maximum size,
+ * those of the least recently used analyses (by modification time, which is
+ * updated whenever an entry is read) are deleted.  The stages of an analysis
+ * are deleted together, shallowest first but always the bandwise weights
+ * before the whitened spectrum they need, so that what is left of an analysis
+ * can still be resumed from.  Temporary files left behind by analyses that
+ * died are deleted once they are old.  A cache may be shared by several
+ * analyses at once, including in other processes.
+ */
+public class StageCache
+{
+  /**
+   * The default maximum size (f0.stageCache.maxMB, in MB).
+   */
+  public static final long DEFAULT_MAX_BYTES =
+                       Long.getLong("f0.stageCache.maxMB", 1024) * 1024 * 1024;
+
+  /**
+   * The cached stages, from shallowest to deepest.
+   */
+  public enum Stage
+  {
+    /**
+     * The magnitude spectrum.
+     */
+    SPECTRUM(2),
+
+    /**
+     * The whitened spectrum.
+     */
+    WHITENED(2),
+
+    /**
+     * The bandwise weights.
+     */
+    BANDWISE(1);
+
+    /**
+     * The version of the code that produces the stage's output.
+     */
+    public final int mVersion;
+
+    private Stage(int xiVersion)
+    {
+      mVersion = xiVersion;
+    }
+  }
+
+  private static final int MAGIC = 0x46305343;
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".stage";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // The age (ms) after which an unmodified temporary file is taken to have
+  // been abandoned by an analysis that failed before it could clean up.
+  private static final long TEMP_MAX_AGE = 60 * 60 * 1000;
+
+  private final File mDirectory;
+  private final long mMaxBytes;
+
+  /**
+   * Create a stage cache with the default maximum size.
+   *
+   * @param xiDirectory - the directory holding the cache.  It is created if
+   * necessary.
+   */
+  public StageCache(File xiDirectory)
+  {
+    this(xiDirectory, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Create a stage cache.
+   *
+   * @param xiDirectory - the directory holding the cache.  It is created if
+   * necessary.
+   * @param xiMaxBytes - the maximum total size of the entries.
+   */
+  public StageCache(File xiDirectory, long xiMaxBytes)
+  {
+    mDirectory = xiDirectory;
+    mMaxBytes = xiMaxBytes;
+    mDirectory.mkdirs();
+  }
+
+  /**
+   * Hash the content of a file.
+   *
+   * @param xiFile - the file.
+   * @return the hash, in hex.
+   * @throws IOException if the file can't be read.
+   */
+  public static String hashContent(File xiFile) throws IOException
+  {
+    final MessageDigest lDigest = newDigest();
+    final InputStream lStream = new FileInputStream(xiFile);
+    try
+    {
+      final byte[] lBuffer = new byte[64 * 1024];
+      int lRead;
+      while ((lRead = lStream.read(lBuffer)) >= 0)
+      {
+        lDigest.update(lBuffer, 0, lRead);
+      }
+    }
+    finally
+    {
+      lStream.close();
+    }
+    return toHex(lDigest.digest());
+  }
+
+  /**
+   * Describe the entry for a stage of the analysis of some audio.
+   *
+   * @param xiContentHash - the hash of the audio (see
+   * {@link #hashContent(File)}).
+   * @param xiStage - the stage.
+   * @param xiDescriptor - description of the audio data.
+   * @param xiStepSize - the step between frames (in samples).
+   * @param xiChannel - the channel analysed, or WavFile.MIX_DOWN.
+   * @param xiSinglePrecision - whether frames are transformed in single
+   * precision.
+   * @return the key of the entry.
+   */
+  public static String key(String xiContentHash,
+                           Stage xiStage,
+                           AudioDescriptor xiDescriptor,
+                           int xiStepSize,
+                           int xiChannel,
+                           boolean xiSinglePrecision)
+  {
+    return String.format(Locale.ROOT,
+                         "%s|%s|rate=%d|frame=%d|step=%d|bins=%d-%d|" +
+                         "channel=%d|%s",
+                         xiContentHash,
+                         stageName(xiStage),
+                         xiDescriptor.mSampleRate,
+                         xiDescriptor.mFrameSize,
+                         xiStepSize,
+                         xiDescriptor.mMinFreqIndex,
+                         xiDescriptor.mMaxFreqIndex,
+                         xiChannel,
+                         xiSinglePrecision ? "float" : "double");
+  }
+
+  /**
+   * @return the name of a stage in keys and entry files.
+   */
+  private static String stageName(Stage xiStage)
+  {
+    return xiStage.name().toLowerCase(Locale.ROOT) + ".v" + xiStage.mVersion;
+  }
+
+  /**
+   * @param xiKey - the key of an entry.
+   * @return whether the entry is cached.
+   */
+  public boolean contains(String xiKey)
+  {
+    return file(xiKey).isFile();
+  }
+
+  /**
+   * Open an entry for reading, marking it as recently used.
+   *
+   * @param xiKey - the key of the entry.
+   * @param xiStage - the stage it holds.
+   * @return the reader, or null if the entry isn't cached.
+   * @throws IOException if the entry can't be read.
+   */
+  public Reader open(String xiKey, Stage xiStage) throws IOException
+  {
+    final File lFile = file(xiKey);
+    if (!lFile.setLastModified(System.currentTimeMillis()))
+    {
+      return null;
+    }
+
+    final DataInputStream lStream;
+    try
+    {
+      lStream = new DataInputStream(
+                  new BufferedInputStream(new FileInputStream(lFile), 64 * 1024));
+    }
+    catch (final IOException lEx)
+    {
+      // Evicted since it was touched.
+      return null;
+    }
+    return new Reader(lStream, xiKey, xiStage);
+  }
+
+  /**
+   * Create a new entry.  The entry is only added to the cache once it is
+   * committed, and not at all if it is (or is expected to be) bigger than the
+   * cache.
+   *
+   * @param xiKey - the key of the entry.
+   * @param xiStage - the stage it holds.
+   * @param xiDescriptor - description of the audio data.
+   * @param xiNumFrames - the number of frames expected.
+   * @return the writer.
+   * @throws IOException if the entry can't be created.
+   */
+  public Writer create(String xiKey,
+                       Stage xiStage,
+                       AudioDescriptor xiDescriptor,
+                       long xiNumFrames)
+    throws IOException
+  {
+    final int lNumValues =
+          FrameAnalyser.endBin(xiDescriptor,
+                               TableCache.getWhitener(xiDescriptor),
+                               TableCache.getWeightCalculator(xiDescriptor));
+
+    // The size of the spectra is known in advance: a flag, the offset, the
+    // number of values and the values for each frame.  (The bandwise weights
+    // are stored sparsely, so can only be checked as they are written.)
+    if ((xiStage != Stage.BANDWISE) &&
+        (xiNumFrames * (1 + 8 + 4 + (lNumValues * 4L)) > mMaxBytes))
+    {
+      return new Writer(null, null, xiKey, xiStage, lNumValues);
+    }
+
+    final File lTemp = File.createTempFile("entry", TEMP_SUFFIX, mDirectory);
+    return new Writer(lTemp, file(xiKey), xiKey, xiStage, lNumValues);
+  }
+
+  /**
+   * Delete the least recently used entries until the cache is within its
+   * maximum size, and any abandoned temporary files.
+   */
+  public synchronized void evict()
+  {
+    final File[] lFiles = mDirectory.listFiles();
+    if (lFiles == null)
+    {
+      return;
+    }
+
+    // Only complete entries count towards the size.  Temporary files still
+    // being written are left alone.
+    final long lTempCutoff = System.currentTimeMillis() - TEMP_MAX_AGE;
+    final File[] lEntries = new File[lFiles.length];
+    final Set<String> lNames = new HashSet<String>();
+    int lNumEntries = 0;
+    for (final File lFile : lFiles)
+    {
+      final String lName = lFile.getName();
+      if (lName.endsWith(SUFFIX))
+      {
+        lEntries[lNumEntries++] = lFile;
+        lNames.add(lName);
+      }
+      else if (lName.endsWith(TEMP_SUFFIX) && (lFile.lastModified() < lTempCutoff))
+      {
+        lFile.delete();
+      }
+    }
+
+    // Drop any bandwise weights whose whitened spectrum has gone, as they
+    // can't be resumed from.  An analysis was last used when any of its
+    // entries was.
+    final Map<String, Long> lAnalysisUsed = new HashMap<String, Long>();
+    final long[] lModified = new long[lNumEntries];
+    int lNumKept = 0;
+    long lTotal = 0;
+    for (int lii = 0; lii < lNumEntries; lii++)
+    {
+      final File lEntry = lEntries[lii];
+      final String lAnalysis = analysis(lEntry.getName());
+      if (lEntry.getName().equals(entryName(lAnalysis, Stage.BANDWISE)) &&
+          !lNames.contains(entryName(lAnalysis, Stage.WHITENED)))
+      {
+        lEntry.delete();
+        continue;
+      }
+
+      lEntries[lNumKept] = lEntry;
+      lModified[lNumKept] = lEntry.lastModified();
+      lTotal += lEntry.length();
+      final Long lUsed = lAnalysisUsed.get(lAnalysis);
+      if ((lUsed == null) || (lUsed < lModified[lNumKept]))
+      {
+        lAnalysisUsed.put(lAnalysis, lModified[lNumKept]);
+      }
+      lNumKept++;
+    }
+    if (lTotal <= mMaxBytes)
+    {
+      return;
+    }
+
+    // Sort by when each analysis was last used (taking a snapshot, as the
+    // times may change), then by the order in which its stages go.
+    final long[] lAnalysisModified = new long[lNumKept];
+    final int[] lRank = new int[lNumKept];
+    final Integer[] lOrder = new Integer[lNumKept];
+    for (int lii = 0; lii < lNumKept; lii++)
+    {
+      final String lName = lEntries[lii].getName();
+      final String lAnalysis = analysis(lName);
+      lAnalysisModified[lii] = lAnalysisUsed.get(lAnalysis);
+      lRank[lii] = lName.equals(entryName(lAnalysis, Stage.WHITENED)) ? 2 :
+                   lName.equals(entryName(lAnalysis, Stage.BANDWISE)) ? 1 : 0;
+      lOrder[lii] = lii;
+    }
+    Arrays.sort(lOrder, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer xiA, Integer xiB)
+      {
+        final int lCompare = Long.compare(lAnalysisModified[xiA],
+                                          lAnalysisModified[xiB]);
+        return (lCompare != 0) ? lCompare :
+                                 Integer.compare(lRank[xiA], lRank[xiB]);
+      }
+    });
+
+    for (final Integer lIndex : lOrder)
+    {
+      if (lTotal <= mMaxBytes)
+      {
+        break;
+      }
+      final File lEntry = lEntries[lIndex];
+      final long lLength = lEntry.length();
+      if (lEntry.delete())
+      {
+        lTotal -= lLength;
+      }
+    }
+  }
+
+  /**
+   * @return the file holding an entry.  The entries of one analysis are named
+   * for a hash of its key without the stage, followed by the stage.
+   */
+  private File file(String xiKey)
+  {
+    // The stage is the second field of the key.
+    final int lStageStart = xiKey.indexOf('|') + 1;
+    final int lStageEnd = xiKey.indexOf('|', lStageStart);
+    final String lAnalysis = xiKey.substring(0, lStageStart) +
+                             xiKey.substring(lStageEnd + 1);
+    try
+    {
+      return new File(mDirectory,
+                      toHex(newDigest().digest(lAnalysis.getBytes("UTF-8"))) +
+                      "." + xiKey.substring(lStageStart, lStageEnd) + SUFFIX);
+    }
+    catch (final IOException lEx)
+    {
+      throw new IllegalStateException(lEx);
+    }
+  }
+
+  /**
+   * @return the name of the entry file for a stage of an analysis.
+   */
+  private static String entryName(String xiAnalysis, Stage xiStage)
+  {
+    return xiAnalysis + "." + stageName(xiStage) + SUFFIX;
+  }
+
+  /**
+   * @return the analysis (the hash prefix) of an entry file.
+   */
+  private static String analysis(String xiName)
+  {
+    return xiName.substring(0, xiName.indexOf('.'));
+  }
+
+  private static MessageDigest newDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (final NoSuchAlgorithmException lEx)
+    {
+      throw new IllegalStateException(lEx);
+    }
+  }
+
+  private static String toHex(byte[] xiBytes)
+  {
+    final StringBuilder lHex = new StringBuilder(xiBytes.length * 2);
+    for (final byte lByte : xiBytes)
+    {
+      lHex.append(String.format(Locale.ROOT, "%02x", lByte & 0xFF));
+    }
+    return lHex.toString();
+  }
+
+  /**
+   * Reads the frames of an entry, in order.
+   */
+  public static class Reader
+  {
+    private final DataInputStream mStream;
+    private final Stage mStage;
+
+    // Whether all the frames have been read.
+    private boolean mFinished;
+
+    private Reader(DataInputStream xiStream, String xiKey, Stage xiStage)
+      throws IOException
+    {
+      mStream = xiStream;
+      mStage = xiStage;
+      try
+      {
+        if ((mStream.readInt() != MAGIC) ||
+            (mStream.readInt() != VERSION) ||
+            (!mStream.readUTF().equals(xiKey)))
+        {
+          throw new IOException("Corrupt cache entry for " + xiKey);
+        }
+      }
+      catch (final IOException lEx)
+      {
+        mStream.close();
+        throw lEx;
+      }
+    }
+
+    /**
+     * Read the next frame's stage output into an analysis: its magnitude
+     * spectrum (which must have been allocated), whitened spectrum or
+     * bandwise weights, along with its offset.
+     *
+     * @param xoResult - the analysis.
+     * @return whether there was another frame (false on every call once all
+     * have been read).
+     * @throws IOException if the entry can't be read.
+     */
+    public boolean readFrame(FrameAnalysis xoResult) throws IOException
+    {
+      try
+      {
+        if (mFinished || !mStream.readBoolean())
+        {
+          mFinished = true;
+          return false;
+        }
+
+        xoResult.mOffset = mStream.readLong();
+        switch (mStage)
+        {
+          case SPECTRUM:
+            readValues(xoResult.mMagnitudes);
+            break;
+
+          case WHITENED:
+            readValues(xoResult.mWhitened);
+            break;
+
+          case BANDWISE:
+            final double[][] lBandwise = new double[mStream.readInt()][];
+            for (int lBand = 0; lBand < lBandwise.length; lBand++)
+            {
+              // Stored sparsely - most candidates have no weight in a band.
+              lBandwise[lBand] = new double[mStream.readInt()];
+              final int lNonZero = mStream.readInt();
+              for (int lii = 0; lii < lNonZero; lii++)
+              {
+                final int lIndex = mStream.readInt();
+                lBandwise[lBand][lIndex] = mStream.readDouble();
+              }
+            }
+            xoResult.mBandwiseWeights = lBandwise;
+            break;
+        }
+        return true;
+      }
+      catch (final EOFException lEx)
+      {
+        throw new IOException("Truncated cache entry", lEx);
+      }
+    }
+
+    private void readValues(double[] xoValues) throws IOException
+    {
+      final int lNumValues = mStream.readInt();
+      if (lNumValues > xoValues.length)
+      {
+        throw new IOException("Cache entry has the wrong number of bins");
+      }
+      for (int lii = 0; lii < lNumValues; lii++)
+      {
+        xoValues[lii] = mStream.readFloat();
+      }
+      Arrays.fill(xoValues, lNumValues, xoValues.length, 0);
+    }
+
+    /**
+     * Close the entry.
+     *
+     * @throws IOException if the entry can't be closed.
+     */
+    public void close() throws IOException
+    {
+      mStream.close();
+    }
+  }
+
+  /**
+   * Writes the frames of a new entry, in order.  Once the entry is bigger than
+   * the cache it is discarded, and further frames are ignored.
+   */
+  public class Writer
+  {
+    private final File mTemp;
+    private final File mTarget;
+    private final Stage mStage;
+    private final int mNumValues;
+
+    // The stream, or null once the entry has been discarded.
+    private DataOutputStream mStream;
+
+    /**
+     * Create a writer, or (with a null temporary file) one that discards the
+     * entry.
+     */
+    private Writer(File xiTemp,
+                   File xiTarget,
+                   String xiKey,
+                   Stage xiStage,
+                   int xiNumValues)
+      throws IOException
+    {
+      mTemp = xiTemp;
+      mTarget = xiTarget;
+      mStage = xiStage;
+      mNumValues = xiNumValues;
+      if (xiTemp != null)
+      {
+        mStream = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(xiTemp), 64 * 1024));
+        mStream.writeInt(MAGIC);
+        mStream.writeInt(VERSION);
+        mStream.writeUTF(xiKey);
+      }
+    }
+
+    /**
+     * Write a frame's stage output.
+     *
+     * @param xiFrame - the analysis of the frame.
+     * @throws IOException if the entry can't be written.
+     */
+    public void addFrame(FrameAnalysis xiFrame) throws IOException
+    {
+      if (mStream == null)
+      {
+        return;
+      }
+
+      mStream.writeBoolean(true);
+      mStream.writeLong(xiFrame.mOffset);
+      switch (mStage)
+      {
+        case SPECTRUM:
+          writeValues(xiFrame.mMagnitudes);
+          break;
+
+        case WHITENED:
+          writeValues(xiFrame.mWhitened);
+          break;
+
+        case BANDWISE:
+          mStream.writeInt(xiFrame.mBandwiseWeights.length);
+          for (final double[] lWeights : xiFrame.mBandwiseWeights)
+          {
+            int lNonZero = 0;
+            for (final double lWeight : lWeights)
+            {
+              if (lWeight != 0)
+              {
+                lNonZero++;
+              }
+            }
+            mStream.writeInt(lWeights.length);
+            mStream.writeInt(lNonZero);
+            for (int lii = 0; lii < lWeights.length; lii++)
+            {
+              if (lWeights[lii] != 0)
+              {
+                mStream.writeInt(lii);
+                mStream.writeDouble(lWeights[lii]);
+              }
+            }
+          }
+          break;
+      }
+
+      // The size saturates at Integer.MAX_VALUE.
+      if (mStream.size() > mMaxBytes)
+      {
+        abort();
+      }
+    }
+
+    private void writeValues(double[] xiValues) throws IOException
+    {
+      final int lNumValues = Math.min(mNumValues, xiValues.length);
+      mStream.writeInt(lNumValues);
+      for (int lii = 0; lii < lNumValues; lii++)
+      {
+        mStream.writeFloat((float)xiValues[lii]);
+      }
+    }
+
+    /**
+     * Complete the entry and add it to the cache (unless it was discarded),
+     * evicting older entries if the cache is now too big.
+     *
+     * @throws IOException if the entry can't be written.
+     */
+    public void commit() throws IOException
+    {
+      if (mStream == null)
+      {
+        return;
+      }
+
+      mStream.writeBoolean(false);
+      mStream.close();
+      if (!mTemp.renameTo(mTarget))
+      {
+        // Another analysis may have added the same entry.
+        mTemp.delete();
+      }
+      evict();
+    }
+
+    /**
+     * Discard the entry.
+     */
+    public void abort()
+    {
+      if (mStream == null)
+      {
+        return;
+      }
+
+      try
+      {
+        mStream.close();
+      }
+      catch (final IOException lEx)
+      {
+        // Deleting anyway.
+      }
+      mStream = null;
+      mTemp.delete();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram for a single pipeline stage.
+ *
+ * Timings are counted in log-linear buckets (in the style of HdrHistogram):
+ * each power of 2 nanoseconds is split into SUB_BUCKETS linear buckets, so
+ * percentiles are accurate to within 1 / SUB_BUCKETS of the value.  Recording
+ * never allocates and may be done concurrently from any number of threads.
+ */
+public class StageTimer implements StageTimerMBean
+{
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+  private final String mName;
+  private final AtomicLongArray mCounts =
+                                 new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mTotalNanos = new AtomicLong();
+  private final AtomicLong mMaxNanos = new AtomicLong();
+
+  /**
+   * Create a stage timer.
+   *
+   * @param xiName - the name of the stage.
+   */
+  public StageTimer(String xiName)
+  {
+    mName = xiName;
+  }
+
+  /**
+   * @return the name of the stage.
+   */
+  public String getName()
+  {
+    return mName;
+  }
+
+  /**
+   * Record a timing.
+   *
+   * @param xiNanos - the time taken (in nanoseconds).
+   */
+  public void record(long xiNanos)
+  {
+    final long lNanos = Math.max(0, xiNanos);
+    mCounts.incrementAndGet(bucketIndex(lNanos));
+    mCount.incrementAndGet();
+    mTotalNanos.addAndGet(lNanos);
+
+    long lMax = mMaxNanos.get();
+    while ((lNanos > lMax) && !mMaxNanos.compareAndSet(lMax, lNanos))
+    {
+      lMax = mMaxNanos.get();
+    }
+  }
+
+  @Override
+  public long getCount()
+  {
+    return mCount.get();
+  }
+
+  @Override
+  public double getMeanMicros()
+  {
+    final long lCount = mCount.get();
+    return (lCount == 0) ? 0 : (mTotalNanos.get() / 1000.0) / lCount;
+  }
+
+  @Override
+  public double getP50Micros()
+  {
+    return percentileNanos(0.50) / 1000.0;
+  }
+
+  @Override
+  public double getP99Micros()
+  {
+    return percentileNanos(0.99) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMicros()
+  {
+    return mMaxNanos.get() / 1000.0;
+  }
+
+  @Override
+  public void reset()
+  {
+    for (int lii = 0; lii < mCounts.length(); lii++)
+    {
+      mCounts.set(lii, 0);
+    }
+    mCount.set(0);
+    mTotalNanos.set(0);
+    mMaxNanos.set(0);
+  }
+
+  /**
+   * @return the given percentile (in nanoseconds) - specifically the upper
+   * bound of the bucket containing it.
+   *
+   * @param xiFraction - the percentile, as a fraction (0 to 1).
+   */
+  public long percentileNanos(double xiFraction)
+  {
+    final long lCount = mCount.get();
+    if (lCount == 0)
+    {
+      return 0;
+    }
+
+    final long lTarget = Math.max(1, (long)Math.ceil(lCount * xiFraction));
+    long lSeen = 0;
+    for (int lii = 0; lii < mCounts.length(); lii++)
+    {
+      lSeen += mCounts.get(lii);
+      if (lSeen >= lTarget)
+      {
+        return Math.min(bucketUpperBound(lii), mMaxNanos.get());
+      }
+    }
+    return mMaxNanos.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(Locale.ROOT,
+                         "%-18s n=%-9d mean=%9.1fus p50=%9.1fus p99=%9.1fus " +
+                         "max=%9.1fus",
+                         mName,
+                         getCount(),
+                         getMeanMicros(),
+                         getP50Micros(),
+                         getP99Micros(),
+                         getMaxMicros());
+  }
+
+  /**
+   * Values below SUB_BUCKETS map directly to buckets in magnitude 0.  Larger
+   * values map to magnitude (highest bit - SUB_BUCKET_BITS + 1), with the
+   * SUB_BUCKET_BITS bits below the highest bit selecting the sub-bucket.
+   */
+  private static int bucketIndex(long xiValue)
+  {
+    if (xiValue < SUB_BUCKETS)
+    {
+      return (int)xiValue;
+    }
+    final int lMagnitude = (63 - Long.numberOfLeadingZeros(xiValue)) -
+                                                         SUB_BUCKET_BITS + 1;
+    final int lSubBucket = (int)(xiValue >>> (lMagnitude - 1)) - SUB_BUCKETS;
+    return (lMagnitude * SUB_BUCKETS) + lSubBucket;
+  }
+
+  private static long bucketUpperBound(int xiIndex)
+  {
+    final int lMagnitude = xiIndex / SUB_BUCKETS;
+    final int lSubBucket = xiIndex % SUB_BUCKETS;
+    if (lMagnitude == 0)
+    {
+      return lSubBucket;
+    }
+    return ((long)(SUB_BUCKETS + lSubBucket + 1) << (lMagnitude - 1)) - 1;
+  }
+}
@@ -0,0 +1,37 @@
+package core;
+
+/**
+ * JMX view of a {@link StageTimer}.
+ */
+public interface StageTimerMBean
+{
+  /**
+   * @return the number of timings recorded.
+   */
+  long getCount();
+
+  /**
+   * @return the mean time (in microseconds).
+   */
+  double getMeanMicros();
+
+  /**
+   * @return the median time (in microseconds).
+   */
+  double getP50Micros();
+
+  /**
+   * @return the 99th percentile time (in microseconds).
+   */
+  double getP99Micros();
+
+  /**
+   * @return the maximum time (in microseconds).
+   */
+  double getMaxMicros();
+
+  /**
+   * Discard all recorded timings.
+   */
+  void reset();
+}
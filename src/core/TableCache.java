@@ -0,0 +1,201 @@
+package core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import core.F0Estimator.AudioDescriptor;
+
+/**
+ * Process-wide cache of the immutable tables used in analysis: window
+ * coefficients, FFT twiddles, and the whitener's and weight calculator's
+ * band tables.
+ *
+ * The tables depend only on the frame size, the sample rate and the frequency
+ * range (see {@link AnalysisProfile}), and nearly every file is at one of a
+ * handful of rates, so they are built once and shared by every analysis (and
+ * every thread) rather than rebuilt per file.
+ *
+ * The cache is bounded, holding up to f0.tableCache.size entries (32 by
+ * default) and discarding the least recently used beyond that.  It is
+ * thread-safe.  Tables are built outside the lock, so two threads that miss
+ * on the same key at once may both build it; only the first to finish is
+ * kept.
+ */
+public final class TableCache
+{
+  /**
+   * The maximum number of entries held.
+   */
+  public static final int CAPACITY = Integer.getInteger("f0.tableCache.size", 32);
+
+  /**
+   * Key for a cached table: what it is, and the parameters it was built for.
+   */
+  private static final class Key
+  {
+    private final String mKind;
+    private final int mFrameSize;
+    private final AudioDescriptor mDescriptor;
+
+    public Key(String xiKind, int xiFrameSize, AudioDescriptor xiDescriptor)
+    {
+      mKind = xiKind;
+      mFrameSize = xiFrameSize;
+      mDescriptor = xiDescriptor;
+    }
+
+    @Override
+    public boolean equals(Object xiOther)
+    {
+      if (!(xiOther instanceof Key))
+      {
+        return false;
+      }
+      final Key lOther = (Key)xiOther;
+      return mKind.equals(lOther.mKind) &&
+             (mFrameSize == lOther.mFrameSize) &&
+             ((mDescriptor == null) ? (lOther.mDescriptor == null) :
+                                      mDescriptor.equals(lOther.mDescriptor));
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (((mKind.hashCode() * 31) + mFrameSize) * 31) +
+             ((mDescriptor == null) ? 0 : mDescriptor.hashCode());
+    }
+  }
+
+  /**
+   * Builds a table on a cache miss.
+   */
+  private static abstract class Builder<T>
+  {
+    public abstract T build();
+  }
+
+  // The cache, in least- to most-recently used order.  Guarded by itself.
+  private static final Map<Key, Object> CACHE =
+                                 new LinkedHashMap<Key, Object>(16, 0.75f, true)
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Object> xiEldest)
+    {
+      return size() > CAPACITY;
+    }
+  };
+
+  private TableCache()
+  {
+    // Static methods only.
+  }
+
+  /**
+   * @param xiSize - the window size (in samples).
+   * @return the Hamming window of the given size.
+   */
+  public static HammingWindow getHammingWindow(final int xiSize)
+  {
+    return get(new Key("window", xiSize, null), new Builder<HammingWindow>()
+    {
+      @Override
+      public HammingWindow build()
+      {
+        return new HammingWindow(xiSize);
+      }
+    });
+  }
+
+  /**
+   * @param xiSize - the FFT size.
+   * @return the bit-reversal and twiddle tables for a real FFT of the given
+   * size.
+   */
+  static RealFFT.Tables getFFTTables(final int xiSize)
+  {
+    return get(new Key("fft", xiSize, null), new Builder<RealFFT.Tables>()
+    {
+      @Override
+      public RealFFT.Tables build()
+      {
+        return new RealFFT.Tables(xiSize);
+      }
+    });
+  }
+
+  /**
+   * @param xiDescriptor - description of the audio data.
+   * @return a whitener for audio of the given description.
+   */
+  public static Whitener getWhitener(final AudioDescriptor xiDescriptor)
+  {
+    return get(new Key("whitener", xiDescriptor.mFrameSize, xiDescriptor),
+               new Builder<Whitener>()
+    {
+      @Override
+      public Whitener build()
+      {
+        return new Whitener(xiDescriptor);
+      }
+    });
+  }
+
+  /**
+   * @param xiDescriptor - description of the audio data.
+   * @return a weight calculator for audio of the given description.
+   */
+  public static KlapuriWeightCalculator getWeightCalculator(
+                                            final AudioDescriptor xiDescriptor)
+  {
+    return get(new Key("weights", xiDescriptor.mFrameSize, xiDescriptor),
+               new Builder<KlapuriWeightCalculator>()
+    {
+      @Override
+      public KlapuriWeightCalculator build()
+      {
+        return new KlapuriWeightCalculator(xiDescriptor);
+      }
+    });
+  }
+
+  /**
+   * Discard all cached tables.
+   */
+  public static void clear()
+  {
+    synchronized (CACHE)
+    {
+      CACHE.clear();
+    }
+  }
+
+  /**
+   * Look up a table, building and caching it if it isn't present.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T get(Key xiKey, Builder<T> xiBuilder)
+  {
+    synchronized (CACHE)
+    {
+      final Object lTable = CACHE.get(xiKey);
+      if (lTable != null)
+      {
+        return (T)lTable;
+      }
+    }
+
+    final T lTable = xiBuilder.build();
+    synchronized (CACHE)
+    {
+      final Object lExisting = CACHE.get(xiKey);
+      if (lExisting != null)
+      {
+        return (T)lExisting;
+      }
+      CACHE.put(xiKey, lTable);
+      return lTable;
+    }
+  }
+}
@@ -1,41 +1,155 @@
 package core;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.transform.DftNormalization;
-import org.apache.commons.math3.transform.FastFourierTransformer;
-import org.apache.commons.math3.transform.TransformType;
-
-import core.F0Estimator.AudioDescriptor;
-
 /**
  * Fourier transformer (with Hamming window).
+ *
+ * The window and FFT tables come from the {@link TableCache}, so creating a
+ * transformer costs little more than allocating its scratch space.
+ *
+ * Instances hold scratch space and are therefore not thread-safe.
  */
 public class Transformer
 {
-  private final FastFourierTransformer mFreqTransformer;
+  private final RealFFT mFreqTransformer;
   private final HammingWindow mHammingWindow;
 
+  // Scratch spectrum for the magnitude transforms.
+  private final double[] mRe;
+  private final double[] mIm;
+  private final float[] mFloatRe;
+  private final float[] mFloatIm;
+
   /**
    * Create a Fourier transformer.
+   *
+   * @param xiFrameSize - the frame size (in samples).  Must be a power of 2.
    */
-  public Transformer()
+  public Transformer(int xiFrameSize)
   {
-    mFreqTransformer = new FastFourierTransformer(DftNormalization.STANDARD);
-    mHammingWindow = new HammingWindow(AudioDescriptor.FRAME_SIZE);
+    mFreqTransformer = new RealFFT(xiFrameSize);
+    mHammingWindow = TableCache.getHammingWindow(xiFrameSize);
+    mRe = new double[mFreqTransformer.getNumBins()];
+    mIm = new double[mFreqTransformer.getNumBins()];
+    mFloatRe = new float[mFreqTransformer.getNumBins()];
+    mFloatIm = new float[mFreqTransformer.getNumBins()];
+  }
+
+  /**
+   * @return the number of frequency bins produced by a transform.
+   */
+  public int getNumBins()
+  {
+    return mFreqTransformer.getNumBins();
   }
 
   /**
    * Transform the real-valued samples into the frequency domain.
    *
-   * @param xiSamples - input samples.
-   * @return frequency spectrum.
+   * Only the non-redundant bins (0 to half the frame size inclusive) are produced.
+   *
+   * @param xiSamples - input samples.  These are windowed in place.
+   * @param xoRe - array (of at least {@link #getNumBins()}) to receive the
+   * real part of the spectrum.
+   * @param xoIm - array (of at least {@link #getNumBins()}) to receive the
+   * imaginary part of the spectrum.
    */
-  public Complex[] transform(double[] xiSamples)
+  public void transform(double[] xiSamples, double[] xoRe, double[] xoIm)
   {
+    final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
     // Apply a Hamming window
     mHammingWindow.apply(xiSamples);
 
+    final long lWindowed = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
     // Perform an FFT.
-    return mFreqTransformer.transform(xiSamples, TransformType.FORWARD);
+    mFreqTransformer.transform(xiSamples, xoRe, xoIm);
+
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.WINDOW.record(lWindowed - lStart);
+      PipelineMetrics.FFT.record(System.nanoTime() - lWindowed);
+    }
+  }
+
+  /**
+   * Transform the real-valued samples into the magnitude spectrum.
+   *
+   * @param xiSamples - input samples.  These are windowed in place.
+   * @param xoMagnitudes - array (of at least {@link #getNumBins()}) to receive
+   * the magnitude of each frequency bin.
+   */
+  public void transformMagnitudes(double[] xiSamples, double[] xoMagnitudes)
+  {
+    transform(xiSamples, mRe, mIm);
+    for (int lii = 0; lii < mRe.length; lii++)
+    {
+      xoMagnitudes[lii] = Math.sqrt((mRe[lii] * mRe[lii]) +
+                                    (mIm[lii] * mIm[lii]));
+    }
+  }
+
+  /**
+   * Transform the real-valued samples into the power spectrum (i.e. the
+   * squared magnitude of each bin).  This avoids a square root per bin for
+   * consumers that don't need the magnitude itself.
+   *
+   * @param xiSamples - input samples.  These are windowed in place.
+   * @param xoPower - array (of at least {@link #getNumBins()}) to receive the
+   * squared magnitude of each frequency bin.
+   */
+  public void transformPower(double[] xiSamples, double[] xoPower)
+  {
+    transform(xiSamples, mRe, mIm);
+    for (int lii = 0; lii < mRe.length; lii++)
+    {
+      xoPower[lii] = (mRe[lii] * mRe[lii]) + (mIm[lii] * mIm[lii]);
+    }
+  }
+
+  /**
+   * Transform the real-valued samples into the frequency domain, in single
+   * precision.  See {@link #transform(double[], double[], double[])}.
+   *
+   * @param xiSamples - input samples.  These are windowed in place.
+   * @param xoRe - array (of at least {@link #getNumBins()}) to receive the
+   * real part of the spectrum.
+   * @param xoIm - array (of at least {@link #getNumBins()}) to receive the
+   * imaginary part of the spectrum.
+   */
+  public void transform(float[] xiSamples, float[] xoRe, float[] xoIm)
+  {
+    final long lStart = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
+    mHammingWindow.apply(xiSamples);
+
+    final long lWindowed = PipelineMetrics.ENABLED ? System.nanoTime() : 0;
+
+    mFreqTransformer.transform(xiSamples, xoRe, xoIm);
+
+    if (PipelineMetrics.ENABLED)
+    {
+      PipelineMetrics.WINDOW.record(lWindowed - lStart);
+      PipelineMetrics.FFT.record(System.nanoTime() - lWindowed);
+    }
+  }
+
+  /**
+   * Transform the real-valued samples into the magnitude spectrum, in single
+   * precision.  The magnitudes are widened to double on output, for the
+   * later stages.
+   *
+   * @param xiSamples - input samples.  These are windowed in place.
+   * @param xoMagnitudes - array (of at least {@link #getNumBins()}) to receive
+   * the magnitude of each frequency bin.
+   */
+  public void transformMagnitudes(float[] xiSamples, double[] xoMagnitudes)
+  {
+    transform(xiSamples, mFloatRe, mFloatIm);
+    for (int lii = 0; lii < mFloatRe.length; lii++)
+    {
+      xoMagnitudes[lii] = (float)Math.sqrt((mFloatRe[lii] * mFloatRe[lii]) +
+                                           (mFloatIm[lii] * mFloatIm[lii]));
+    }
   }
 }
@@ -15,11 +15,18 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
 public class WavFile
 {
 	private enum IOState {READING, WRITING, CLOSED}
 	private final static int BUFFER_SIZE = 4096;
+	private final static int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
 
 	private final static int FMT_CHUNK_ID = 0x20746D66;
 	private final static int DATA_CHUNK_ID = 0x61746164;
@@ -35,6 +42,9 @@ public class WavFile
 	private double floatScale;				// Scaling factor used for int <-> float conversion
 	private double floatOffset;			// Offset factor used for int <-> float conversion
 	private boolean wordAlignAdjust;		// Specify if an extra byte at the end of the data chunk is required for word alignment
+	private long dataOffset;				// Byte offset of the start of the data chunk's samples within the file
+	private boolean memoryMapped;			// Specifies whether samples are read through a memory-mapped window
+	private MappedByteBuffer mappedBuffer;	// Current memory-mapped window over the data chunk (little endian)
 
 	// Wav Header
 	private int numChannels;				// 2 bytes unsigned, 0x0001 (1) to 0xFFFF (65,535)
@@ -187,10 +197,19 @@ public class WavFile
 	}
 
 	public static WavFile openWavFile(File file) throws IOException, WavFileException
+	{
+		return openWavFile(file, false);
+	}
+
+	// When memoryMapped is set, samples are decoded in bulk from a memory-mapped
+	// window over the data chunk rather than byte-by-byte through the stream
+	// buffer.  The decoded values are identical in both modes.
+	public static WavFile openWavFile(File file, boolean memoryMapped) throws IOException, WavFileException
 	{
 		// Instantiate new Wavfile and store the file reference
 		final WavFile wavFile = new WavFile();
 		wavFile.file = file;
+		wavFile.memoryMapped = memoryMapped;
 
 		// Create a new file input stream for reading file data
 		wavFile.iStream = new FileInputStream(file);
@@ -322,6 +341,9 @@ public class WavFile
 				// Calculate the number of frames
 				wavFile.numFrames = chunkSize / wavFile.blockAlign;
 
+				// Record where the samples start
+				wavFile.dataOffset = wavFile.iStream.getChannel().position();
+
 				// Flag that we've found the wave data chunk
 				foundData = true;
 
@@ -414,27 +436,230 @@ public class WavFile
 
 		for (int b=0 ; b<bytesPerSample ; b++)
 		{
-			if (bufferPointer == bytesRead)
+			int v;
+			if (memoryMapped)
 			{
-				final int read = iStream.read(buffer, 0, BUFFER_SIZE);
-				if (read == -1)
-        {
-          throw new WavFileException("Not enough data available");
-        }
-				bytesRead = read;
-				bufferPointer = 0;
+				if ((mappedBuffer == null) || !mappedBuffer.hasRemaining())
+				{
+					mapWindow();
+				}
+				v = mappedBuffer.get();
+			}
+			else
+			{
+				if (bufferPointer == bytesRead)
+				{
+					final int read = iStream.read(buffer, 0, BUFFER_SIZE);
+					if (read == -1)
+					{
+						throw new WavFileException("Not enough data available");
+					}
+					bytesRead = read;
+					bufferPointer = 0;
+				}
+
+				v = buffer[bufferPointer];
+				bufferPointer ++;
 			}
 
-			int v = buffer[bufferPointer];
 			if ((b < (bytesPerSample-1)) || (bytesPerSample == 1))
-      {
-        v &= 0xFF;
-      }
+			{
+				v &= 0xFF;
+			}
 			val += v << (b * 8);
+		}
 
-			bufferPointer ++;
+		return val;
+	}
+
+	// Memory-mapped Reading
+	// ---------------------
+	// The data chunk is mapped a window at a time (always a whole number of
+	// frames) so that files larger than a single MappedByteBuffer can address
+	// are still supported.
+	private void mapWindow() throws IOException, WavFileException
+	{
+		final long framesLeft = numFrames - frameCounter;
+		if (framesLeft <= 0)
+		{
+			throw new WavFileException("Not enough data available");
+		}
+
+		final long windowFrames = Math.min(framesLeft, Math.max(1, MAP_WINDOW_SIZE / blockAlign));
+		mappedBuffer = iStream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+		                                        dataOffset + (frameCounter * blockAlign),
+		                                        windowFrames * blockAlign);
+		mappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// Returns the number of whole frames (up to numFramesWanted) that can be
+	// decoded from the current window, remapping if the window is exhausted.
+	private int mappedFramesAvailable(int numFramesWanted) throws IOException, WavFileException
+	{
+		if ((mappedBuffer == null) || !mappedBuffer.hasRemaining())
+		{
+			mapWindow();
+		}
+		return Math.min(numFramesWanted, mappedBuffer.remaining() / blockAlign);
+	}
+
+	private int readMappedFrames(double[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+	{
+		int framesRead = 0;
+		while ((framesRead < numFramesToRead) && (frameCounter < numFrames))
+		{
+			final int frames = mappedFramesAvailable(numFramesToRead - framesRead);
+			final int numSamples = frames * numChannels;
+			decode(mappedBuffer, sampleBuffer, offset, numSamples);
+
+			offset += numSamples;
+			framesRead += frames;
+			frameCounter += frames;
+		}
+
+		return framesRead;
+	}
+
+	private int readMappedFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+	{
+		int framesRead = 0;
+		while ((framesRead < numFramesToRead) && (frameCounter < numFrames))
+		{
+			final int frames = mappedFramesAvailable(numFramesToRead - framesRead);
+			final int numSamples = frames * numChannels;
+			decode(mappedBuffer, sampleBuffer, offset, numSamples);
+
+			offset += numSamples;
+			framesRead += frames;
+			frameCounter += frames;
+		}
+
+		return framesRead;
+	}
+
+	// Bulk decode from the mapped window (or any little-endian buffer of
+	// samples).  Each case produces exactly the value that readSample() would
+	// have assembled byte-by-byte.
+	private void decode(ByteBuffer source, double[] sampleBuffer, int offset, int numSamples)
+	{
+		final int end = offset + numSamples;
+		switch (bytesPerSample)
+		{
+			case 1:
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = floatOffset + ((source.get() & 0xFF) / floatScale);
+				}
+				break;
+
+			case 2:
+			{
+				final ShortBuffer view = source.asShortBuffer();
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = floatOffset + (view.get() / floatScale);
+				}
+				source.position(source.position() + (numSamples * 2));
+				break;
+			}
+
+			case 3:
+				for (int s=offset ; s<end ; s++)
+				{
+					final int v = (source.get() & 0xFF) +
+					              ((source.get() & 0xFF) << 8) +
+					              (source.get() << 16);
+					sampleBuffer[s] = floatOffset + (v / floatScale);
+				}
+				break;
+
+			case 4:
+			{
+				final IntBuffer view = source.asIntBuffer();
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = floatOffset + (view.get() / floatScale);
+				}
+				source.position(source.position() + (numSamples * 4));
+				break;
+			}
+
+			default:
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = floatOffset + (decodeSample(source) / floatScale);
+				}
+				break;
 		}
+	}
+
+	private void decode(ByteBuffer source, float[] sampleBuffer, int offset, int numSamples)
+	{
+		final int end = offset + numSamples;
+		switch (bytesPerSample)
+		{
+			case 1:
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = (float) (floatOffset + ((source.get() & 0xFF) / floatScale));
+				}
+				break;
+
+			case 2:
+			{
+				final ShortBuffer view = source.asShortBuffer();
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = (float) (floatOffset + (view.get() / floatScale));
+				}
+				source.position(source.position() + (numSamples * 2));
+				break;
+			}
 
+			case 3:
+				for (int s=offset ; s<end ; s++)
+				{
+					final int v = (source.get() & 0xFF) +
+					              ((source.get() & 0xFF) << 8) +
+					              (source.get() << 16);
+					sampleBuffer[s] = (float) (floatOffset + (v / floatScale));
+				}
+				break;
+
+			case 4:
+			{
+				final IntBuffer view = source.asIntBuffer();
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = (float) (floatOffset + (view.get() / floatScale));
+				}
+				source.position(source.position() + (numSamples * 4));
+				break;
+			}
+
+			default:
+				for (int s=offset ; s<end ; s++)
+				{
+					sampleBuffer[s] = (float) (floatOffset + (decodeSample(source) / floatScale));
+				}
+				break;
+		}
+	}
+
+	// Byte-by-byte decode of a single sample from a buffer, mirroring
+	// readSample().
+	private long decodeSample(ByteBuffer source)
+	{
+		long val = 0;
+		for (int b=0 ; b<bytesPerSample ; b++)
+		{
+			int v = source.get();
+			if ((b < (bytesPerSample-1)) || (bytesPerSample == 1))
+			{
+				v &= 0xFF;
+			}
+			val += v << (b * 8);
+		}
 		return val;
 	}
 
@@ -704,6 +929,11 @@ public class WavFile
       throw new IOException("Cannot read from WavFile instance");
     }
 
+		if (memoryMapped)
+    {
+      return readMappedFrames(sampleBuffer, offset, numFramesToRead);
+    }
+
 		for (int f=0 ; f<numFramesToRead ; f++)
 		{
 			if (frameCounter == numFrames)
@@ -754,6 +984,343 @@ public class WavFile
 		return numFramesToRead;
 	}
 
+	// Float
+	// -----
+	public int readFrames(float[] sampleBuffer, int numFramesToRead) throws IOException, WavFileException
+	{
+		return readFrames(sampleBuffer, 0, numFramesToRead);
+	}
+
+	public int readFrames(float[] sampleBuffer, int offset, int numFramesToRead) throws IOException, WavFileException
+	{
+		if (ioState != IOState.READING)
+    {
+      throw new IOException("Cannot read from WavFile instance");
+    }
+
+		if (memoryMapped)
+    {
+      return readMappedFrames(sampleBuffer, offset, numFramesToRead);
+    }
+
+		for (int f=0 ; f<numFramesToRead ; f++)
+		{
+			if (frameCounter == numFrames)
+      {
+        return f;
+      }
+
+			for (int c=0 ; c<numChannels ; c++)
+			{
+				sampleBuffer[offset] = (float) (floatOffset + (readSample() / floatScale));
+				offset ++;
+			}
+
+			frameCounter ++;
+		}
+
+		return numFramesToRead;
+	}
+
+	// Single channel
+	// --------------
+	// Reads frames as a single channel: either one channel of the file or, for
+	// MIX_DOWN, the mean of all of them.  Samples are mixed (or selected) as
+	// they are decoded, so the buffer receives one sample per frame and no
+	// interleaved copy is made.  For a mono file this is just readFrames().
+	public final static int MIX_DOWN = -1;
+
+	public int readMonoFrames(double[] sampleBuffer, int offset, int numFramesToRead, int channel) throws IOException, WavFileException
+	{
+		if (numChannels == 1)
+		{
+			return readFrames(sampleBuffer, offset, numFramesToRead);
+		}
+		checkMonoRead(channel);
+
+		int framesRead = 0;
+		while ((framesRead < numFramesToRead) && (frameCounter < numFrames))
+		{
+			final int frames = bulkMonoFramesAvailable(numFramesToRead - framesRead);
+			if (frames > 0)
+			{
+				final ShortBuffer view = mappedBuffer.asShortBuffer();
+				for (int f=0 ; f<frames ; f++)
+				{
+					sampleBuffer[offset + f] = floatOffset + (mixShorts(view, f * numChannels, channel) / floatScale);
+				}
+				mappedBuffer.position(mappedBuffer.position() + (frames * blockAlign));
+				offset += frames;
+				framesRead += frames;
+				frameCounter += frames;
+			}
+			else
+			{
+				sampleBuffer[offset] = floatOffset + (readMonoSample(channel) / floatScale);
+				offset ++;
+				framesRead ++;
+				frameCounter ++;
+			}
+		}
+
+		return framesRead;
+	}
+
+	public int readMonoFrames(float[] sampleBuffer, int offset, int numFramesToRead, int channel) throws IOException, WavFileException
+	{
+		if (numChannels == 1)
+		{
+			return readFrames(sampleBuffer, offset, numFramesToRead);
+		}
+		checkMonoRead(channel);
+
+		int framesRead = 0;
+		while ((framesRead < numFramesToRead) && (frameCounter < numFrames))
+		{
+			final int frames = bulkMonoFramesAvailable(numFramesToRead - framesRead);
+			if (frames > 0)
+			{
+				final ShortBuffer view = mappedBuffer.asShortBuffer();
+				for (int f=0 ; f<frames ; f++)
+				{
+					sampleBuffer[offset + f] = (float) (floatOffset + (mixShorts(view, f * numChannels, channel) / floatScale));
+				}
+				mappedBuffer.position(mappedBuffer.position() + (frames * blockAlign));
+				offset += frames;
+				framesRead += frames;
+				frameCounter += frames;
+			}
+			else
+			{
+				sampleBuffer[offset] = (float) (floatOffset + (readMonoSample(channel) / floatScale));
+				offset ++;
+				framesRead ++;
+				frameCounter ++;
+			}
+		}
+
+		return framesRead;
+	}
+
+	private void checkMonoRead(int channel) throws IOException
+	{
+		if (ioState != IOState.READING)
+		{
+			throw new IOException("Cannot read from WavFile instance");
+		}
+		if ((channel < MIX_DOWN) || (channel >= numChannels))
+		{
+			throw new IllegalArgumentException("No channel " + channel + " in a " + numChannels + " channel file");
+		}
+	}
+
+	// Returns the number of frames (up to numFramesWanted) that can be decoded
+	// in bulk from the mapped window - only done for 16-bit samples, the common
+	// case - or 0 if they must be decoded a sample at a time.
+	private int bulkMonoFramesAvailable(int numFramesWanted) throws IOException, WavFileException
+	{
+		if (!memoryMapped || (bytesPerSample != 2))
+		{
+			return 0;
+		}
+		return mappedFramesAvailable(numFramesWanted);
+	}
+
+	// Mixes (or selects from) the channels of the frame starting at the given
+	// index of a 16-bit view.
+	private double mixShorts(ShortBuffer view, int index, int channel)
+	{
+		if (channel != MIX_DOWN)
+		{
+			return view.get(index + channel);
+		}
+		long sum = 0;
+		for (int c=0 ; c<numChannels ; c++)
+		{
+			sum += view.get(index + c);
+		}
+		return (double) sum / numChannels;
+	}
+
+	// Reads a whole frame, sample by sample, and mixes (or selects from) its
+	// channels.
+	private double readMonoSample(int channel) throws IOException, WavFileException
+	{
+		long selected = 0;
+		long sum = 0;
+		for (int c=0 ; c<numChannels ; c++)
+		{
+			final long val = readSample();
+			sum += val;
+			if (c == channel)
+			{
+				selected = val;
+			}
+		}
+		return (channel == MIX_DOWN) ? ((double) sum / numChannels) : selected;
+	}
+
+	// Random Access
+	// -------------
+	// Reads frames starting at any frame of the data chunk, using positional
+	// reads on the file's channel from the data offset found when the file was
+	// opened.  These neither use nor move the position of the sequential reads
+	// above, so a region (e.g. one to be re-analysed) can be read without
+	// decoding the file from the start.  The number of frames read is fewer
+	// than requested only at the end of the data.
+	public int readFrames(long startFrame, double[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		final ByteBuffer bytes = allocateRandomBuffer(startFrame, numFramesToRead);
+		int framesRead = 0;
+		int frames;
+		while ((framesRead < numFramesToRead) &&
+		       ((frames = readDataAt(bytes, startFrame + framesRead, numFramesToRead - framesRead)) > 0))
+		{
+			decode(bytes, sampleBuffer, offset, frames * numChannels);
+			offset += frames * numChannels;
+			framesRead += frames;
+		}
+
+		return framesRead;
+	}
+
+	public int readFrames(long startFrame, float[] sampleBuffer, int offset, int numFramesToRead) throws IOException
+	{
+		final ByteBuffer bytes = allocateRandomBuffer(startFrame, numFramesToRead);
+		int framesRead = 0;
+		int frames;
+		while ((framesRead < numFramesToRead) &&
+		       ((frames = readDataAt(bytes, startFrame + framesRead, numFramesToRead - framesRead)) > 0))
+		{
+			decode(bytes, sampleBuffer, offset, frames * numChannels);
+			offset += frames * numChannels;
+			framesRead += frames;
+		}
+
+		return framesRead;
+	}
+
+	// As readMonoFrames(), from any frame.
+	public int readMonoFrames(long startFrame, double[] sampleBuffer, int offset, int numFramesToRead, int channel) throws IOException
+	{
+		if (numChannels == 1)
+		{
+			return readFrames(startFrame, sampleBuffer, offset, numFramesToRead);
+		}
+		checkMonoRead(channel);
+
+		final ByteBuffer bytes = allocateRandomBuffer(startFrame, numFramesToRead);
+		int framesRead = 0;
+		int frames;
+		while ((framesRead < numFramesToRead) &&
+		       ((frames = readDataAt(bytes, startFrame + framesRead, numFramesToRead - framesRead)) > 0))
+		{
+			final ShortBuffer view = (bytesPerSample == 2) ? bytes.asShortBuffer() : null;
+			for (int f=0 ; f<frames ; f++)
+			{
+				final double sample = (view != null) ? mixShorts(view, f * numChannels, channel) :
+				                                       mixSamples(bytes, channel);
+				sampleBuffer[offset + f] = floatOffset + (sample / floatScale);
+			}
+			offset += frames;
+			framesRead += frames;
+		}
+
+		return framesRead;
+	}
+
+	public int readMonoFrames(long startFrame, float[] sampleBuffer, int offset, int numFramesToRead, int channel) throws IOException
+	{
+		if (numChannels == 1)
+		{
+			return readFrames(startFrame, sampleBuffer, offset, numFramesToRead);
+		}
+		checkMonoRead(channel);
+
+		final ByteBuffer bytes = allocateRandomBuffer(startFrame, numFramesToRead);
+		int framesRead = 0;
+		int frames;
+		while ((framesRead < numFramesToRead) &&
+		       ((frames = readDataAt(bytes, startFrame + framesRead, numFramesToRead - framesRead)) > 0))
+		{
+			final ShortBuffer view = (bytesPerSample == 2) ? bytes.asShortBuffer() : null;
+			for (int f=0 ; f<frames ; f++)
+			{
+				final double sample = (view != null) ? mixShorts(view, f * numChannels, channel) :
+				                                       mixSamples(bytes, channel);
+				sampleBuffer[offset + f] = (float) (floatOffset + (sample / floatScale));
+			}
+			offset += frames;
+			framesRead += frames;
+		}
+
+		return framesRead;
+	}
+
+	// Checks a random-access read and allocates the buffer it reads through: a
+	// whole number of frames, up to BUFFER_SIZE * 16 bytes.  Each read has its
+	// own buffer, so reads may be made concurrently.
+	private ByteBuffer allocateRandomBuffer(long startFrame, int numFramesToRead) throws IOException
+	{
+		if (ioState != IOState.READING)
+		{
+			throw new IOException("Cannot read from WavFile instance");
+		}
+		if ((startFrame < 0) || (numFramesToRead < 0))
+		{
+			throw new IllegalArgumentException("Cannot read " + numFramesToRead + " frames from frame " + startFrame);
+		}
+
+		final int bufferFrames = Math.max(1, Math.min(numFramesToRead, (BUFFER_SIZE * 16) / blockAlign));
+		final ByteBuffer bytes = ByteBuffer.allocate(bufferFrames * blockAlign);
+		bytes.order(ByteOrder.LITTLE_ENDIAN);
+		return bytes;
+	}
+
+	// Fills the buffer with as many whole frames (up to numFramesWanted) as it
+	// holds, starting at the given frame, and returns the number read (0 at
+	// the end of the data).  The buffer is left ready to decode from.
+	private int readDataAt(ByteBuffer bytes, long startFrame, int numFramesWanted) throws IOException
+	{
+		final long frames = Math.min(Math.min(numFramesWanted, bytes.capacity() / blockAlign), numFrames - startFrame);
+		if (frames <= 0)
+		{
+			return 0;
+		}
+
+		final FileChannel channel = iStream.getChannel();
+		final long position = dataOffset + (startFrame * blockAlign);
+		bytes.clear();
+		bytes.limit((int) frames * blockAlign);
+		while (bytes.hasRemaining())
+		{
+			if (channel.read(bytes, position + bytes.position()) < 0)
+			{
+				throw new IOException("Not enough data available");
+			}
+		}
+		bytes.flip();
+		return (int) frames;
+	}
+
+	// Decodes a whole frame from a buffer and mixes (or selects from) its
+	// channels, as readMonoSample() does.
+	private double mixSamples(ByteBuffer source, int channel)
+	{
+		long selected = 0;
+		long sum = 0;
+		for (int c=0 ; c<numChannels ; c++)
+		{
+			final long val = decodeSample(source);
+			sum += val;
+			if (c == channel)
+			{
+				selected = val;
+			}
+		}
+		return (channel == MIX_DOWN) ? ((double) sum / numChannels) : selected;
+	}
+
 	public int writeFrames(double[] sampleBuffer, int numFramesToWrite) throws IOException
 	{
 		return writeFrames(sampleBuffer, 0, numFramesToWrite);
@@ -820,6 +1387,7 @@ public class WavFile
 	public void close() throws IOException
 	{
 		// Close the input stream and set to null
+		mappedBuffer = null;
 		if (iStream != null)
 		{
 			iStream.close();
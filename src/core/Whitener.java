@@ -1,17 +1,28 @@
 package core;
 
-import org.apache.commons.math3.complex.Complex;
-
 import core.F0Estimator.AudioDescriptor;
 
 /**
  * Spectrum whitener.
+ *
+ * The noise-removal bands are calculated once, on construction, and whitening
+ * allocates no memory, so a single whitener may be shared between threads
+ * (see {@link TableCache}).
+ *
+ * Cube roots are taken with {@link Math#cbrt(double)} rather than
+ * Math.pow(x, 1.0 / 3.0) (where 1.0 / 3.0 is itself inexact).  Whitened values
+ * agree with the pow formulation to within 1e-12 (absolute for values below
+ * 1, relative above).
  */
 public class Whitener
 {
-
   private final AudioDescriptor mDescriptor;
 
+  // The noise-removal bands.  Band i covers bins mBandStart[i] (inclusive) to
+  // mBandEnd[i] (exclusive).
+  private final int[] mBandStart;
+  private final int[] mBandEnd;
+
   /**
    * Create a spectrum whitener.
    *
@@ -20,77 +31,129 @@ public class Whitener
   public Whitener(AudioDescriptor xiDescriptor)
   {
     mDescriptor = xiDescriptor;
+
+    // Count the bands.
+    int lNumBands = 0;
+    int lStartIndex = mDescriptor.mMinFreqIndex;
+    while (lStartIndex <= mDescriptor.mMaxFreqIndex)
+    {
+      lNumBands++;
+      lStartIndex = bandEnd(lStartIndex);
+    }
+
+    // Record where they start and end.
+    mBandStart = new int[lNumBands];
+    mBandEnd = new int[lNumBands];
+    lStartIndex = mDescriptor.mMinFreqIndex;
+    for (int lBand = 0; lBand < lNumBands; lBand++)
+    {
+      mBandStart[lBand] = lStartIndex;
+      mBandEnd[lBand] = Math.min(bandEnd(lStartIndex), mDescriptor.mNumBins);
+      lStartIndex = bandEnd(lStartIndex);
+    }
+  }
+
+  /**
+   * @return one past the highest bin of the raw spectrum that contributes to
+   * the whitened spectrum (between mMinFreqIndex and this bin).  Other bins
+   * are whitened in isolation.
+   */
+  public int getEndBin()
+  {
+    final int lLastBand = mBandEnd.length - 1;
+    return Math.max(mDescriptor.mMaxFreqIndex + 1,
+                    (lLastBand < 0) ? 0 : mBandEnd[lLastBand]);
+  }
+
+  /**
+   * Calculate the end of the noise-removal band starting at the given bin.
+   */
+  private static int bandEnd(int xiStartIndex)
+  {
+    int lEndIndex = (int)Math.pow(xiStartIndex, 4.0 / 3.0);
+    if (lEndIndex < (xiStartIndex + 5))
+    {
+      lEndIndex = xiStartIndex + 5;
+    }
+    return lEndIndex;
   }
 
   /**
    * Whiten the supplied spectrum.
    *
-   * @param xiFreq - the raw spectrum.
+   * @param xiMagnitudes - the magnitudes of the raw spectrum.  See
+   * {@link Transformer#transformMagnitudes(double[], double[])}.
    *
    * @return the whitened spectrum.
    */
-  public double[] whiten(Complex[] xiFreq)
+  public double[] whiten(double[] xiMagnitudes)
   {
-    final double[] lScaled = warpMagnitudes(xiFreq);
-    removeNoise(lScaled);
+    final double[] lWhitened = new double[xiMagnitudes.length];
+    whiten(xiMagnitudes, lWhitened);
+    return lWhitened;
+  }
 
-    // Remove the noise.  See (4) in [Klapuri2005].
+  /**
+   * Whiten the supplied spectrum into the supplied buffer.
+   *
+   * @param xiMagnitudes - the magnitudes of the raw spectrum.  See
+   * {@link Transformer#transformMagnitudes(double[], double[])}.
+   * @param xoWhitened - array (of the same length as the spectrum) to receive
+   * the whitened spectrum.
+   */
+  public void whiten(double[] xiMagnitudes, double[] xoWhitened)
+  {
+    warpMagnitudes(xiMagnitudes, xoWhitened);
 
-    return lScaled;
+    // Remove the noise.  See (4) in [Klapuri2005].
+    removeNoise(xoWhitened);
   }
 
   /**
    * Perform "magnitude warping" to compensate for noise and the environmental
    * response to the signal.  See (2) and (3) in [Klapuri2005].
    */
-  private double[] warpMagnitudes(Complex[] xiFreq)
+  private void warpMagnitudes(double[] xiMagnitudes, double[] xoScaled)
   {
     // Compute the scaling factor (g).
-    final double[] lScaled = new double[xiFreq.length];
     double lScalingFactor = 0;
     for (int lFSample = mDescriptor.mMinFreqIndex;
          lFSample <= mDescriptor.mMaxFreqIndex;
          lFSample++)
     {
-      lScalingFactor += Math.pow(Math.abs(xiFreq[lFSample].abs()), 1.0 / 3.0);
+      lScalingFactor += Math.cbrt(xiMagnitudes[lFSample]);
     }
     lScalingFactor /= (mDescriptor.mMaxFreqIndex + 1) - mDescriptor.mMinFreqIndex;
-    lScalingFactor = Math.pow(lScalingFactor, 3);
+    lScalingFactor = lScalingFactor * lScalingFactor * lScalingFactor;
 
     // Perform the magnitude warping.
-    for (int lFSample = 0; lFSample < xiFreq.length; lFSample++)
+    final double lInverseScalingFactor = 1.0 / lScalingFactor;
+    for (int lFSample = 0; lFSample < xiMagnitudes.length; lFSample++)
     {
-      lScaled[lFSample] =
-          Math.log1p(Math.abs(xiFreq[lFSample].abs()) / lScalingFactor);
+      xoScaled[lFSample] =
+                      Math.log1p(xiMagnitudes[lFSample] * lInverseScalingFactor);
     }
-
-    return lScaled;
   }
 
   private void removeNoise(double[] xiScaledFreq)
   {
-    int lStartIndex = mDescriptor.mMinFreqIndex;
-    while (lStartIndex <= mDescriptor.mMaxFreqIndex)
+    final double lNumBuckets =
+                    (mDescriptor.mMaxFreqIndex + 1) - mDescriptor.mMinFreqIndex;
+    for (int lBand = 0; lBand < mBandStart.length; lBand++)
     {
-      // Calculate the end of the band
-      int lEndIndex = (int)Math.pow(lStartIndex, 4.0 / 3.0);
-      if (lEndIndex < (lStartIndex + 5))
-      {
-        lEndIndex = lStartIndex + 5;
-      }
+      final int lStartIndex = mBandStart[lBand];
+      final int lEndIndex = mBandEnd[lBand];
 
       double lAvgMagnitude = 0;
       for (int lFSample = lStartIndex; lFSample < lEndIndex; lFSample++)
       {
         lAvgMagnitude += xiScaledFreq[lFSample];
       }
-      lAvgMagnitude /= ((mDescriptor.mMaxFreqIndex + 1)- mDescriptor.mMinFreqIndex);
+      lAvgMagnitude /= lNumBuckets;
       for (int lFSample = lStartIndex; lFSample < lEndIndex; lFSample++)
       {
         xiScaledFreq[lFSample] = Math.max(0, xiScaledFreq[lFSample] - lAvgMagnitude);
       }
-
-      lStartIndex = lEndIndex;
     }
   }
 }
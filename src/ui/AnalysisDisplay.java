@@ -0,0 +1,49 @@
+package ui;
+
+import core.FrameAnalysis;
+import core.ResultSink;
+
+/**
+ * Displays the results of F0 estimation in a set of windows: the whitened
+ * spectogram, the bandwise weights for a single frame and the global weights.
+ */
+public class AnalysisDisplay implements ResultSink
+{
+  /**
+   * The frame for which bandwise weights are displayed.
+   */
+  private static final int BANDWISE_FRAME = 100;
+
+  private final SpectogramWindow mSpecWindow;
+  private final WeightWindow mBandwiseWeightWindow;
+  private final SpectogramWindow mGlobalWeightWindow;
+
+  private int mCount;
+
+  /**
+   * Create the display.
+   */
+  public AnalysisDisplay()
+  {
+    mSpecWindow = new SpectogramWindow("Spectogram");
+    mBandwiseWeightWindow = new WeightWindow();
+    mGlobalWeightWindow = new SpectogramWindow("Global weights");
+  }
+
+  @Override
+  public void addFrame(FrameAnalysis xiFrame)
+  {
+    mSpecWindow.addSamples(xiFrame.mWhitened);
+    if (++mCount == BANDWISE_FRAME)
+    {
+      mBandwiseWeightWindow.addWeights(xiFrame.mBandwiseWeights);
+    }
+    mGlobalWeightWindow.addSamples(xiFrame.mGlobalWeights);
+  }
+
+  @Override
+  public void close()
+  {
+    // Nothing to do - the windows remain open.
+  }
+}